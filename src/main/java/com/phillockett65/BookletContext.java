@@ -0,0 +1,1353 @@
+/*  PDFBook - a simple application to generate a booklet from of a PDF.
+ *
+ *  Copyright 2020 Philip Lockett.
+ *
+ *  This file is part of PDFBook.
+ *
+ *  PDFBook is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  PDFBook is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with PDFBook.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+ /*
+ * BookletContext holds everything needed for one run of BookletEngine: the
+ * settings of the job and the documents, importers and loader thread used to
+ * generate the booklet. A new context is created for each run and discarded
+ * afterwards, so runs never share mutable state and any number of them can
+ * proceed at the same time.
+ */
+package com.phillockett65;
+
+import java.awt.geom.AffineTransform;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDDocumentCatalog;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.PDPageTree;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.common.PDStream;
+import org.apache.pdfbox.pdmodel.graphics.form.PDFormXObject;
+import org.apache.pdfbox.pdmodel.graphics.optionalcontent.PDOptionalContentGroup;
+import org.apache.pdfbox.pdmodel.graphics.optionalcontent.PDOptionalContentProperties;
+import org.apache.pdfbox.util.Matrix;
+
+/**
+ *
+ * @author Phil
+ */
+class BookletContext {
+
+    private static final long QPDF_TIMEOUT = 600;   // Seconds, by default.
+
+    private final BookletJob job;
+    private final BookletEngine.Progress progress;  // Null logs to console.
+
+    // Settings of the job.
+    private final PDRectangle pageSize;
+    private final int sheetCount;
+    private final boolean rotate;
+    private final int rasterThreshold;
+    private final float rasterDPI;
+    private final float imageDPI;
+    private final boolean linearize;
+    private final boolean incremental;
+    private final int writeBuffer;
+    private final boolean sync;
+    private final boolean compact;
+    private final String sourcePDF;     // The source PDF filepath.
+    private final String outputPDF;     // The primary generated PDF filepath.
+    private int firstPage;              // Page range, limited to the source.
+    private int lastPage;
+
+    private PDDocument inputDoc;        // The source PDF document.
+    private List<PDPage> sourcePages;   // Pages of "inputDoc".
+    private List<Target> targets;       // All generated PDF documents.
+    private Target target;              // Generated PDF being imposed.
+    private List<PDPage> rebuilt;       // Pages replaced in a reused PDF.
+    private PDDocument stagingDoc;      // Holds objects imported by "loader".
+    private PDPage page;                // Current page of "target".
+    private FormImporter importer;      // Imports pages into "stagingDoc".
+    private PageFingerprint fingerprint;    // Identifies identical pages.
+    private SectionLoader loader;       // Imports sections ahead of use.
+    private Section current;            // Section being imposed.
+    private int sideCount;              // Sides added, used to name layers.
+    private PageRasterizer rasterizer;  // Renders complex pages, if enabled.
+    private ImageDownsampler downsampler;   // Reduces images, if enabled.
+
+
+
+    /**
+     * Constructor.
+     *
+     * @param booklet settings of the booklet to generate.
+     * @param listener to update with progress, or null to log to the console.
+     */
+    public BookletContext(BookletJob booklet,
+            BookletEngine.Progress listener) {
+        job = booklet;
+        progress = listener;
+
+        pageSize = job.getPageSize();
+        sheetCount = job.getSheetCount();
+        rotate = job.isRotate();
+        rasterThreshold = job.getRasterThreshold();
+        rasterDPI = job.getRasterDPI();
+        imageDPI = job.getImageDPI();
+        linearize = job.isLinearize();
+        incremental = job.isIncremental();
+        writeBuffer = job.getWriteBuffer();
+        sync = job.isSync();
+        compact = job.isCompact();
+        sourcePDF = job.getSourcePDF();
+        outputPDF = job.getOutputPDF();
+    }
+
+    /**
+     * A generated PDF document and the page size it is imposed on.
+     */
+    private static class Target {
+        private final PDRectangle pageSize;
+        private final String outputPDF;
+        private PDDocument outputDoc;   // The generated PDF document.
+
+        private Target(PDRectangle size, String outPDF) {
+            pageSize = size;
+            outputPDF = outPDF;
+        }
+    }
+
+    /**
+     * The source pages of a section, imported ready to be imposed.
+     */
+    private static class Section {
+        private final int first;        // First page number of the section.
+        private final int last;         // Page number after the section.
+        private final Map<Integer, PDFormXObject> forms = new HashMap<>();
+        private final Map<Integer, PDRectangle> frames = new HashMap<>();
+        private IOException error;      // Failure loading the section.
+
+        private Section(int fpn, int lpn) {
+            first = fpn;
+            last = lpn;
+        }
+    }
+
+    /**
+     * Loads the source pages of each section on a background thread while the
+     * previous section is imposed, so reading, parsing and cloning the source
+     * overlaps with building the sheets. Sections are handed over in order
+     * through a bounded queue, so the generated PDF is unchanged.
+     *
+     * Only this thread uses inputDoc and the FormImporter while it runs, and
+     * it creates streams in stagingDoc rather than the generated documents,
+     * so the two threads never create streams in the same document.
+     */
+    private class SectionLoader implements Runnable {
+
+        private final List<int[]> ranges;   // Sections to load, in order.
+        private final BlockingQueue<Section> queue =
+                new ArrayBlockingQueue<>(1);
+
+        // Form imported for each distinct page, keyed by page fingerprint.
+        private final Map<String, PDFormXObject> imported = new HashMap<>();
+
+        /**
+         * Constructor.
+         *
+         * @param sections first and last page numbers of each section to load.
+         */
+        private SectionLoader(List<int[]> sections) {
+            ranges = sections;
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (int[] range : ranges) {
+                    Section section = new Section(range[0], range[1]);
+                    try {
+                        load(section);
+                    } catch (IOException e) {
+                        section.error = e;
+                    } catch (RuntimeException e) {
+                        section.error = new IOException(e);
+                    }
+
+                    queue.put(section);
+                    if (section.error != null) {
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Generation has finished or failed.
+            }
+        }
+
+        /**
+         * Wait for the next section to be loaded.
+         *
+         * @return the next section.
+         * @throws IOException if the section could not be loaded.
+         */
+        private Section take() throws IOException {
+            BookletEvents.Wait event = BookletEvents.ENABLED
+                    ? new BookletEvents.Wait() : null;
+            if (event != null) {
+                event.begin();
+            }
+
+            Section section;
+            try {
+                section = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted loading section", e);
+            }
+
+            if (event != null) {
+                event.end();
+            }
+            if ((event != null) && event.shouldCommit()) {
+                event.firstPage = section.first + 1;
+                event.lastPage = section.last;
+                event.commit();
+            }
+
+            if (section.error != null) {
+                throw section.error;
+            }
+
+            return section;
+        }
+
+        /**
+         * Import the source pages of a section. Pages that are identical to a
+         * page already imported, such as blank pages or repeated dividers,
+         * use the same form XObject, so they are only cloned once and appear
+         * once in the generated PDF.
+         *
+         * @param section to load.
+         * @throws IOException if a page could not be imported.
+         */
+        private void load(Section section) throws IOException {
+            final int count = section.last - section.first;
+            String[] keys = new String[count];
+            for (int i = 0; i < count; ++i) {
+                keys[i] = fingerprint.get(sourcePages.get(section.first + i));
+            }
+
+            // Start rendering any distinct pages that are too complex to
+            // import.
+            if (rasterizer != null) {
+                Set<String> submitted = new HashSet<>();
+                for (int i = 0; i < count; ++i) {
+                    if (imported.containsKey(keys[i])
+                            || !submitted.add(keys[i])) {
+                        continue;
+                    }
+
+                    final int pn = section.first + i;
+                    PDPage source = sourcePages.get(pn);
+                    if (PageRasterizer.getComplexity(source)
+                            >= rasterThreshold) {
+                        rasterizer.submit(pn);
+                    }
+                }
+            }
+
+            // The frame of the first page is used in place of a missing page.
+            section.frames.put(0, sourcePages.get(0).getCropBox());
+            for (int i = 0; i < count; ++i) {
+                final int pn = section.first + i;
+                PDRectangle frame = sourcePages.get(pn).getCropBox();
+                section.frames.put(pn, frame);
+
+                PDFormXObject form = imported.get(keys[i]);
+                if (form == null) {
+                    form = importPageAsForm(pn, frame);
+                    imported.put(keys[i], form);
+                }
+                section.forms.put(pn, form);
+            }
+        }
+    }
+
+    /**
+     * Load the source PDF, add each section of pages to the generated PDFs and
+     * save them. This is the single generation loop used for every job, so
+     * all callers scale in the same way with page count.
+     *
+     * @return true if the generated PDFs were saved, false otherwise.
+     */
+    public boolean run() {
+        boolean saved = false;
+
+        try {
+            BookletEvents.Load load = BookletEvents.ENABLED
+                    ? new BookletEvents.Load() : null;
+            if (load != null) {
+                load.begin();
+            }
+            inputDoc = PDDocument.load(new File(sourcePDF));
+            if (load != null) {
+                load.end();
+            }
+            if ((load != null) && load.shouldCommit()) {
+                load.source = sourcePDF;
+                load.pages = inputDoc.getNumberOfPages();
+                load.bytes = new File(sourcePDF).length();
+                load.commit();
+            }
+
+            // PDDocument.getPage() searches the page tree from the root every
+            // time, so find every page once.
+            sourcePages = new ArrayList<>(inputDoc.getNumberOfPages());
+            for (PDPage source : inputDoc.getPages()) {
+                sourcePages.add(source);
+            }
+
+            // Limit the page range to the pages of the source.
+            lastPage = Math.min(job.getLastPage(), sourcePages.size());
+            firstPage = Math.min(job.getFirstPage(), lastPage);
+
+            if (rasterThreshold >= 0) {
+                rasterizer = new PageRasterizer(sourcePDF, rasterDPI,
+                        Runtime.getRuntime().availableProcessors());
+            }
+
+            if (imageDPI > 0) {
+                downsampler = new ImageDownsampler(imageDPI,
+                        Runtime.getRuntime().availableProcessors());
+            }
+
+            try {
+                final int MAX = lastPage;
+                final int COUNT = lastPage - firstPage;
+                final int SECTION = 4 * sheetCount;
+                final int sections = (COUNT + SECTION - 1) / SECTION;
+                final int[] pageCounts = new int[sections];
+
+                targets = new ArrayList<>();
+                for (BookletJob.Output output : job.getOutputs()) {
+                    targets.add(new Target(output.getPageSize(),
+                            output.getOutputPDF()));
+                }
+
+                // Reuse the previous booklet if it was generated with the same
+                // settings and only rebuild the sections that have changed.
+                final boolean changes = incremental && (targets.size() == 1);
+                fingerprint = new PageFingerprint();
+                String[] hashes = null;
+                Properties previous = null;
+                if (changes) {
+                    hashes = getSectionHashes();
+                    previous = loadSections(sections);
+                }
+
+                // Use one FormImporter for the whole run so that source
+                // objects shared between pages, such as fonts and images, are
+                // only cloned once. The pages are imported into stagingDoc, as
+                // a PDDocument cannot create streams on two threads at once,
+                // and the same forms are saved as part of every generated PDF.
+                stagingDoc = new PDDocument();
+                importer = new FormImporter(inputDoc, stagingDoc);
+                for (Target output : targets) {
+                    if (previous != null) {
+                        output.outputDoc = PDDocument.load(
+                                new File(output.outputPDF));
+                    } else {
+                        output.outputDoc = new PDDocument();
+                    }
+                    importer.importOcProperties(output.outputDoc);
+                }
+                target = targets.get(0);
+                if (previous != null) {
+                    sideCount = Integer.parseInt(previous.getProperty("sides"));
+                    rebuilt = new ArrayList<>();
+                } else {
+                    sideCount = 0;
+                }
+
+                // Find the sections that need to be imposed and start loading
+                // their source pages in the background.
+                final boolean[] rebuild = new boolean[sections];
+                List<int[]> ranges = new ArrayList<>();
+                int last = firstPage;
+                for (int section = 0; section < sections; ++section) {
+                    final int first = last;
+                    last = Math.min(first + SECTION, MAX);
+                    rebuild[section] = (previous == null) || !hashes[section]
+                            .equals(previous.getProperty("section." + section));
+                    if (rebuild[section]) {
+                        ranges.add(new int[] { first, last });
+                    }
+                }
+                loader = new SectionLoader(ranges);
+                Thread thread = new Thread(loader, "PDFBook section loader");
+                thread.setDaemon(true);
+                thread.start();
+
+                try {
+                    int offset = 0;
+                    last = firstPage;
+                    for (int section = 0; section < sections; ++section) {
+                        final int first = last;
+                        last = Math.min(first + SECTION, MAX);
+
+                        BookletEvents.Section event = BookletEvents.ENABLED
+                                ? new BookletEvents.Section() : null;
+                        if (event != null) {
+                            event.begin();
+                        }
+                        if (previous == null) {
+                            final PDDocument doc = targets.get(0).outputDoc;
+                            final int before = doc.getNumberOfPages();
+                            addPDPagesToPdf(first, last);
+                            pageCounts[section] =
+                                    doc.getNumberOfPages() - before;
+                        } else {
+                            pageCounts[section] = Integer.parseInt(
+                                    previous.getProperty("pages." + section));
+                            if (rebuild[section]) {
+                                replaceSection(first, last, offset,
+                                        pageCounts[section]);
+                            } else if (event != null) {
+                                event.reused = true;
+                            }
+                        }
+                        if (event != null) {
+                            event.end();
+                        }
+                        if ((event != null) && event.shouldCommit()) {
+                            event.section = section;
+                            event.sheet = section * sheetCount;
+                            event.firstPage = first + 1;
+                            event.lastPage = last;
+                            event.commit();
+                        }
+                        offset += pageCounts[section];
+
+                        if (progress != null) {
+                            checkCancelled();
+                            progress.update(
+                                    100 * (last - firstPage) / COUNT);
+                        } else {
+                            System.out.printf("Pages %d to %d\n", first + 1,
+                                    last);
+                        }
+                    }
+                } finally {
+                    // Interrupting doesn't stop a section part way through
+                    // loading, so wait for the loader to stop before anything
+                    // it uses is closed.
+                    thread.interrupt();
+                    join(thread);
+                }
+                if (downsampler != null) {
+                    checkCancelled();
+                    downsampler.process();
+                }
+                if (compact) {
+                    checkCancelled();
+                    OutputCompactor compactor = new OutputCompactor(
+                            Runtime.getRuntime().availableProcessors());
+                    for (Target output : targets) {
+                        compactor.addDocument(output.outputDoc);
+                    }
+                    compactor.process();
+                }
+                if (previous != null) {
+                    checkCancelled();
+                    mergeSections();
+                }
+
+                // Once saving starts, every generated PDF is saved, so they
+                // are never left out of step with each other.
+                checkCancelled();
+                for (Target output : targets) {
+                    save(output, previous != null);
+                }
+                saved = true;
+                stagingDoc.close();
+                if (changes) {
+                    saveSections(hashes, pageCounts);
+                }
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+            } catch (RuntimeException e) {
+                // Report any other failure, such as from PDFBox, as a failed
+                // job, so the documents and rasterizer are still closed.
+                System.out.println(e);
+            }
+
+            if (rasterizer != null) {
+                rasterizer.close();
+                rasterizer = null;
+            }
+            downsampler = null;
+            if (targets != null) {
+                for (Target output : targets) {
+                    if (output.outputDoc != null) {
+                        output.outputDoc.close();
+                        output.outputDoc = null;
+                    }
+                }
+                targets = null;
+            }
+            target = null;
+            rebuilt = null;
+            importer = null;
+            fingerprint = null;
+            loader = null;
+            current = null;
+            if (stagingDoc != null) {
+                stagingDoc.close();
+                stagingDoc = null;
+            }
+            if (inputDoc != null) {
+                inputDoc.close();
+            }
+            sourcePages = null;
+
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        }
+
+        return saved;
+    }
+
+    /**
+     * Stop generating if the job has been cancelled.
+     *
+     * @throws IOException if the job has been cancelled.
+     */
+    private void checkCancelled() throws IOException {
+        if ((progress != null) && progress.isCancelled()) {
+            throw new IOException("Cancelled: " + outputPDF);
+        }
+    }
+
+    /**
+     * Wait for a thread to finish, even if this thread is interrupted, which
+     * is then flagged again once the thread has finished.
+     *
+     * @param thread to wait for.
+     */
+    private static void join(Thread thread) {
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Save a generated PDF document and close it.
+     * 
+     * @param output generated PDF to save.
+     * @param reused true if the document was loaded from the previous booklet.
+     * @throws IOException if the generated PDF could not be written.
+     */
+    private void save(Target output, boolean reused) throws IOException {
+
+        // A reused booklet is read from outputPDF as it is saved, so it must
+        // be saved to a temporary file first.
+        BookletEvents.Save save = BookletEvents.ENABLED
+                ? new BookletEvents.Save() : null;
+        if (save != null) {
+            save.begin();
+        }
+        final int pages = output.outputDoc.getNumberOfPages();
+        final File temp = new File(output.outputPDF + ".tmp");
+        if (linearize || reused) {
+            write(output.outputDoc, temp);
+        } else {
+            write(output.outputDoc, new File(output.outputPDF));
+        }
+        output.outputDoc.close();
+        output.outputDoc = null;
+        if (linearize) {
+            linearize(temp, output.outputPDF);
+        } else if (reused) {
+            OutputWriter.move(temp.toPath(),
+                    new File(output.outputPDF).toPath(), sync);
+        }
+        if (save != null) {
+            save.end();
+        }
+        if ((save != null) && save.shouldCommit()) {
+            save.output = output.outputPDF;
+            save.pages = pages;
+            save.bytes = new File(output.outputPDF).length();
+            save.commit();
+        }
+    }
+
+    /**
+     * Write a PDF document to a file, through an OutputWriter if a write 
+     * buffer has been set, in which case the write throughput is logged to
+     * the console if there is no progress listener.
+     * 
+     * @param doc to save.
+     * @param file to save the document to.
+     * @throws IOException if the document could not be saved.
+     */
+    private void write(PDDocument doc, File file) throws IOException {
+        if (writeBuffer > 0) {
+            final long start = System.nanoTime();
+            final long bytes = new OutputWriter(writeBuffer, sync).save(doc,
+                    file);
+            if (progress == null) {
+                final long ms = Math.max(1,
+                        (System.nanoTime() - start) / 1000000);
+                System.out.printf(Locale.US,
+                        "Wrote %d KB to %s in %d ms (%.1f MB/s)\n",
+                        bytes / 1024, file.getName(), ms,
+                        bytes / (1024.0 * 1024.0) / (ms / 1000.0));
+            }
+        } else {
+            doc.save(file);
+        }
+    }
+
+    /**
+     * Use qpdf to write the linearized version of a saved PDF to the output
+     * file, which is replaced in one step, so it is never seen part written.
+     * If qpdf is missing, fails or takes longer than the timeout given by the
+     * "pdfbook.qpdf.timeout" system property (in seconds), the output is left
+     * untouched and the job fails, as linearization was asked for.
+     * 
+     * @param temp file holding the saved PDF, which is removed.
+     * @param outPDF file path for the generated PDF.
+     * @throws IOException if the generated PDF could not be linearized.
+     */
+    private void linearize(File temp, String outPDF) throws IOException {
+        final File output = new File(outPDF);
+        final File linear = new File(outPDF + ".lin");
+        final File log = File.createTempFile("qpdf", ".log");
+
+        final String qpdf = System.getProperty("pdfbook.qpdf", "qpdf");
+        final long timeout = Long.getLong("pdfbook.qpdf.timeout",
+                QPDF_TIMEOUT);
+        ProcessBuilder builder = new ProcessBuilder(qpdf, "--linearize",
+                temp.getPath(), linear.getPath());
+        builder.redirectErrorStream(true);
+        // Write the messages to a file, as reading them would block until qpdf
+        // exits, defeating the timeout.
+        builder.redirectOutput(log);
+
+        String reason;
+        try {
+            Process process = builder.start();
+            if (!process.waitFor(timeout, TimeUnit.SECONDS)) {
+                process.destroyForcibly().waitFor();
+                reason = "qpdf timed out after " + timeout + " seconds";
+            } else {
+                // qpdf exits with 3 if it succeeded with warnings.
+                final int status = process.exitValue();
+                if ((status == 0) || (status == 3)) {
+                    OutputWriter.move(linear.toPath(), output.toPath(), sync);
+                    Files.delete(temp.toPath());
+
+                    return;
+                }
+
+                try (InputStream in = new FileInputStream(log)) {
+                    reason = readAll(in);
+                }
+            }
+        } catch (IOException e) {
+            reason = e.getMessage();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            reason = "interrupted";
+        } finally {
+            Files.deleteIfExists(log.toPath());
+        }
+
+        Files.deleteIfExists(linear.toPath());
+        Files.deleteIfExists(temp.toPath());
+
+        throw new IOException("Unable to linearize " + outPDF + ": " + reason);
+    }
+
+    /**
+     * Get the settings that affect the content of the generated PDF.
+     * 
+     * @return the settings as a string.
+     */
+    private String getSettings() {
+        return String.format(Locale.US, "%s %.2fx%.2f %d %b %d-%d %d %.1f %.1f",
+                new File(sourcePDF).getAbsolutePath(), pageSize.getWidth(),
+                pageSize.getHeight(), sheetCount, rotate, firstPage, lastPage,
+                rasterThreshold, rasterDPI, imageDPI);
+    }
+
+    /**
+     * Calculate the fingerprint of each section of the source PDF.
+     * 
+     * @return the fingerprint of each section, in order.
+     * @throws IOException if a page could not be read.
+     */
+    private String[] getSectionHashes() throws IOException {
+        final int MAX = lastPage;
+        final int SECTION = 4 * sheetCount;
+        List<String> hashes = new ArrayList<>();
+
+        int last = firstPage;
+        for (int first = last; first < MAX; first = last) {
+            last += SECTION;
+            if (last > MAX) {
+                last = MAX;
+            }
+
+            List<String> pages = new ArrayList<>();
+            for (int pn = first; pn < last; ++pn) {
+                pages.add(fingerprint.get(sourcePages.get(pn)));
+            }
+            hashes.add(PageFingerprint.combine(pages));
+        }
+
+        return hashes.toArray(new String[hashes.size()]);
+    }
+
+    /**
+     * Read the sidecar file of the previous booklet, if it can be reused.
+     * 
+     * @param sections number of sections in the booklet to be generated.
+     * @return the sidecar properties, or null if the previous booklet is 
+     * missing or was generated with different settings.
+     */
+    private Properties loadSections(int sections) {
+        final File sidecar = new File(outputPDF + ".sections");
+        if (!sidecar.isFile() || !new File(outputPDF).isFile()) {
+            return null;
+        }
+
+        Properties previous = new Properties();
+        try (InputStream in = new FileInputStream(sidecar)) {
+            previous.load(in);
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+
+            return null;
+        }
+
+        if (!getSettings().equals(previous.getProperty("settings"))
+                || !String.valueOf(sections).equals(
+                        previous.getProperty("count"))
+                || (previous.getProperty("sides") == null)) {
+            return null;
+        }
+
+        return previous;
+    }
+
+    /**
+     * Write the sidecar file for the generated booklet.
+     * 
+     * @param hashes fingerprint of each section.
+     * @param pageCounts number of generated pages for each section.
+     * @throws IOException if the sidecar file could not be written.
+     */
+    private void saveSections(String[] hashes, int[] pageCounts)
+            throws IOException {
+        Properties sections = new Properties();
+        sections.setProperty("settings", getSettings());
+        sections.setProperty("count", String.valueOf(hashes.length));
+        sections.setProperty("sides", String.valueOf(sideCount));
+        for (int i = 0; i < hashes.length; ++i) {
+            sections.setProperty("section." + i, hashes[i]);
+            sections.setProperty("pages." + i, String.valueOf(pageCounts[i]));
+        }
+
+        try (OutputStream out = new FileOutputStream(outputPDF + ".sections")) {
+            sections.store(out, "PDFBook section fingerprints");
+        }
+    }
+
+    /**
+     * Impose a section of pages again and replace the pages previously 
+     * generated for it.
+     *
+     * @param fpn first page number to grab from inputDoc (pages start from 0).
+     * @param lpn page number for grabbing pages BEFORE reaching the last page.
+     * @param offset index of the first generated page of the section.
+     * @param count number of generated pages in the section.
+     * @throws IOException if the section no longer has the same page count.
+     */
+    private void replaceSection(int fpn, int lpn, int offset, int count)
+            throws IOException {
+        PDPageTree pages = targets.get(0).outputDoc.getPages();
+        final int start = pages.getCount();
+        addPDPagesToPdf(fpn, lpn);
+
+        // Detach the new pages from the end of the document.
+        List<PDPage> added = new ArrayList<>();
+        while (pages.getCount() > start) {
+            added.add(pages.get(start));
+            pages.remove(start);
+        }
+        if (added.size() != count) {
+            throw new IOException("Section page count changed, regenerate "
+                    + "without incremental mode");
+        }
+
+        // Put each new page in place of the page it replaces. The layers of
+        // the old page are removed by mergeSections().
+        for (int i = 0; i < count; ++i) {
+            PDPage old = pages.get(offset + i);
+            pages.insertBefore(added.get(i), old);
+            pages.remove(old);
+        }
+        rebuilt.addAll(added);
+    }
+
+    /**
+     * Tidy up a reused booklet once the changed sections have been replaced.
+     * The rebuilt sections were imported again, with their own copies of the
+     * fonts, images and optional content groups they share with the reused
+     * pages, so these are merged with the copies already in the booklet.
+     * Then the layers that no page uses any more, such as those of the
+     * replaced pages and the extra copy of the source's layers added by
+     * importOcProperties(), are removed so they don't build up in the layer
+     * panel.
+     *
+     * @throws IOException if a resource could not be read.
+     */
+    private void mergeSections() throws IOException {
+        final PDDocument doc = targets.get(0).outputDoc;
+        if (!rebuilt.isEmpty()) {
+            Set<COSDictionary> added = Collections.newSetFromMap(
+                    new IdentityHashMap<COSDictionary, Boolean>());
+            for (PDPage side : rebuilt) {
+                added.add(side.getCOSObject());
+            }
+
+            // Keep the resources of the reused pages, so the layers of the
+            // source stay where they are in the layer panel.
+            ResourceMerger merger = new ResourceMerger();
+            for (PDPage side : doc.getPages()) {
+                if (!added.contains(side.getCOSObject())) {
+                    merger.addPage(side);
+                }
+            }
+            for (PDPage side : rebuilt) {
+                merger.addPage(side);
+            }
+            if (progress == null) {
+                System.out.printf("Merged %d duplicate resources\n",
+                        merger.getMerged());
+            }
+        }
+
+        removeUnusedLayers(doc);
+    }
+
+    /**
+     * Remove the optional content groups (layers) that no page refers to
+     * from the optional content properties of a generated PDF, including the
+     * default and any other configurations.
+     *
+     * @param doc generated PDF to remove the layers from.
+     */
+    private static void removeUnusedLayers(PDDocument doc) {
+        PDOptionalContentProperties ocProperties =
+                doc.getDocumentCatalog().getOCProperties();
+        if (ocProperties == null) {
+            return;
+        }
+
+        // Find every object the pages refer to, other than their parents.
+        Set<COSBase> used = Collections.newSetFromMap(
+                new IdentityHashMap<COSBase, Boolean>());
+        Deque<COSBase> pending = new ArrayDeque<>();
+        for (PDPage side : doc.getPages()) {
+            pending.push(side.getCOSObject());
+        }
+        while (!pending.isEmpty()) {
+            COSBase base = pending.pop();
+            if (base instanceof COSObject) {
+                base = ((COSObject) base).getObject();
+            }
+            if (!(base instanceof COSDictionary)
+                    && !(base instanceof COSArray)) {
+                continue;
+            }
+            if (!used.add(base)) {
+                continue;
+            }
+
+            if (base instanceof COSArray) {
+                for (COSBase item : (COSArray) base) {
+                    pending.push(item);
+                }
+            } else {
+                COSDictionary dict = (COSDictionary) base;
+                for (COSName key : dict.keySet()) {
+                    if (!COSName.PARENT.equals(key)) {
+                        pending.push(dict.getItem(key));
+                    }
+                }
+            }
+        }
+
+        COSDictionary dict = ocProperties.getCOSObject();
+        COSArray ocgs = dict.getCOSArray(COSName.OCGS);
+        if (ocgs == null) {
+            return;
+        }
+        Set<COSBase> groups = Collections.newSetFromMap(
+                new IdentityHashMap<COSBase, Boolean>());
+        for (int i = 0; i < ocgs.size(); ++i) {
+            COSBase group = ocgs.getObject(i);
+            if (!used.contains(group)) {
+                groups.add(group);
+            }
+        }
+        if (groups.isEmpty()) {
+            return;
+        }
+
+        removeGroups(ocgs, groups);
+
+        List<COSDictionary> configs = new ArrayList<>();
+        COSDictionary config = dict.getCOSDictionary(COSName.D);
+        if (config != null) {
+            configs.add(config);
+        }
+        COSArray others = dict.getCOSArray(COSName.getPDFName("Configs"));
+        if (others != null) {
+            for (int i = 0; i < others.size(); ++i) {
+                if (others.getObject(i) instanceof COSDictionary) {
+                    configs.add((COSDictionary) others.getObject(i));
+                }
+            }
+        }
+        for (COSDictionary item : configs) {
+            removeGroups(item.getCOSArray(COSName.ORDER), groups);
+            removeGroups(item.getCOSArray(COSName.ON), groups);
+            removeGroups(item.getCOSArray(COSName.OFF), groups);
+            removeGroups(item.getCOSArray(COSName.getPDFName("RBGroups")),
+                    groups);
+            removeGroups(item.getCOSArray(COSName.getPDFName("Locked")),
+                    groups);
+        }
+    }
+
+    /**
+     * Remove optional content groups from an array, and from any arrays
+     * nested within it, as in the Order entry of a configuration.
+     *
+     * @param array to remove the groups from, may be null.
+     * @param groups to remove.
+     */
+    private static void removeGroups(COSArray array, Set<COSBase> groups) {
+        if (array == null) {
+            return;
+        }
+
+        for (int i = array.size() - 1; i >= 0; --i) {
+            COSBase item = array.getObject(i);
+            if (groups.contains(item)) {
+                array.remove(i);
+            } else if (item instanceof COSArray) {
+                removeGroups((COSArray) item, groups);
+            }
+        }
+    }
+
+    /**
+     * Read a stream to the end.
+     * 
+     * @param in stream to read.
+     * @return the contents of the stream as text.
+     * @throws IOException if the stream could not be read.
+     */
+    private static String readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+
+        return out.toString().trim();
+    }
+
+    /**
+     * Add a section of pages to each generated PDF document.
+     *
+     * @param fpn first page number to grab from inputDoc (pages start from 0).
+     * @param lpn page number for grabbing pages BEFORE reaching the last page.
+     * @throws IOException if the section could not be loaded.
+     */
+    private void addPDPagesToPdf(int fpn, int lpn) throws IOException {
+
+        // Get the source pages of the section, loaded in the background.
+        current = loader.take();
+        if ((current.first != fpn) || (current.last != lpn)) {
+            throw new IOException("Section loaded out of order");
+        }
+
+        // Create an array of page numbers from a PDF document.
+        int i = 0;
+        int[] pages = new int[lpn-fpn];
+        for (int target = fpn; target < lpn; ++target) {
+            pages[i++] = target;
+        }
+
+        // Impose the same imported pages on each page size, numbering the
+        // layers of every generated PDF in the same way.
+        final int sides = sideCount;
+        for (Target output : targets) {
+            target = output;
+            sideCount = sides;
+
+            // Add pages in pairs to both side of the sheet.
+            final int LAST = 4 * sheetCount;
+            int first = 0;
+            int last = LAST - 1;
+            for (int sheet = 0; sheet < sheetCount; ++sheet) {
+                addPDPagesToPage(pages, first++, last--, false);
+                addPDPagesToPage(pages, last--, first++, rotate);
+            }
+        }
+    }
+
+    /**
+     * Add two pages, scale and rotate to fit on portrait 'pageSize' page.
+     *
+     * @param pages array to be added to document in booklet arrangement.
+     * @param right index into pages for the right page.
+     * @param left index into pages for the left page.
+     * @param flip flag to indicate if the images should be rotated clockwise.
+     */
+    private void addPDPagesToPage(int[] pages, int right, int left,
+            boolean flip) {
+
+        if (add2PagesToPage(pages, right, left)) {
+            try {
+                PDPage imported = target.outputDoc.importPage(page);
+                addPageToPdf(imported, flip);
+            } catch (IOException e) {
+            }
+        }
+
+    }
+
+    /**
+     * Add two pages, side by side, to a single page of a PDF document.
+     *
+     * @param pages array to be added to document in booklet arrangement.
+     * @param right index into pages for the right page.
+     * @param left index into pages for the left page.
+     */
+    private boolean add2PagesToPage(int[] pages, int right, int left) {
+
+        final int count = pages.length;
+        boolean lpa = false;
+        boolean rpa = false;
+        int lpn = 0;
+        int rpn = 0;
+        if (count > left) {
+            lpa = true;
+            lpn = pages[left];
+        }
+        if (count > right) {
+            rpa = true;
+            rpn = pages[right];
+        }
+        if ((lpa == false) && (rpa == false))
+            return false;
+
+        try {
+            // Create output PDF frame.
+            PDRectangle lFrame = current.frames.get(lpn);
+            PDRectangle rFrame = current.frames.get(rpn);
+
+            final float lw = lFrame.getWidth();
+            final float lh = lFrame.getHeight();
+            final float rw = rFrame.getWidth();
+            final float rh = rFrame.getHeight();
+
+            // Vertically centre the shorter of the two pages.
+            float h = lh;
+            float lty = 0.0f;
+            float rty = 0.0f;
+
+            if (rh > lh) {
+                h = rh;
+                lty = (rh - lh) / 2;
+            }
+            else {
+                rty = (lh - rh) / 2;
+            }
+            PDRectangle outPdfFrame = new PDRectangle(lw + rw, h);
+
+            final int idx = sideCount++;
+
+            // Create page with calculated frame and add it to the document.
+            COSDictionary dict = new COSDictionary();
+            dict.setItem(COSName.TYPE, COSName.PAGE);
+            dict.setItem(COSName.MEDIA_BOX, outPdfFrame);
+            dict.setItem(COSName.CROP_BOX, outPdfFrame);
+            dict.setItem(COSName.ART_BOX, outPdfFrame);
+            page = new PDPage(dict);
+
+            // Source PDF pages has to be imported as form XObjects to be able
+            // to insert them at a specific point in the output page.
+            PDFormXObject lForm = current.forms.get(lpn);
+            PDFormXObject rForm = current.forms.get(rpn);
+
+            // Add form objects to output page.
+            if (lpa) {
+                AffineTransform af = AffineTransform.getTranslateInstance(
+                        0.0, lty);
+                appendFormAsLayer(page, lForm, af, "left" + idx);
+            }
+            if (rpa) {
+                AffineTransform af = AffineTransform.getTranslateInstance(
+                        lw, rty);
+                appendFormAsLayer(page, rForm, af, "right" + idx);
+            }
+
+            return true;
+
+        } catch (IOException e) {
+        }
+
+        return false;
+    }
+
+    /**
+     * Draw a form XObject on a page of the current target as a new layer, in
+     * the same way as LayerUtility.appendFormAsLayer(). LayerUtility first
+     * reads the name of every layer in the document to check that the new
+     * name isn't already used, which makes imposing a document quadratic in
+     * its page count. The layer names are numbered by sideCount, so they
+     * can't already be used.
+     *
+     * @param page to draw the form on.
+     * @param form to draw.
+     * @param af transform to apply to the form.
+     * @param name of the new layer.
+     * @throws IOException if the form could not be drawn.
+     */
+    private void appendFormAsLayer(PDPage page, PDFormXObject form,
+            AffineTransform af, String name) throws IOException {
+        PDDocumentCatalog catalog = target.outputDoc.getDocumentCatalog();
+        PDOptionalContentProperties ocProperties = catalog.getOCProperties();
+        if (ocProperties == null) {
+            ocProperties = new PDOptionalContentProperties();
+            catalog.setOCProperties(ocProperties);
+        }
+        PDOptionalContentGroup group = new PDOptionalContentGroup(name);
+        ocProperties.addGroup(group);
+
+        try (PDPageContentStream stream = new PDPageContentStream(
+                target.outputDoc, page,
+                PDPageContentStream.AppendMode.APPEND, true)) {
+            stream.beginMarkedContent(COSName.OC, group);
+            stream.saveGraphicsState();
+            stream.transform(new Matrix(af));
+            stream.drawForm(form);
+            stream.restoreGraphicsState();
+            stream.endMarkedContent();
+        }
+    }
+
+    /**
+     * Import a source page as a form XObject, using the rendered image of the
+     * page if it has been submitted to the rasterizer.
+     *
+     * @param pn page number to import from inputDoc (pages start from 0).
+     * @param frame crop box of the source page.
+     * @return the form XObject for the page.
+     * @throws IOException if the page could not be imported.
+     */
+    private PDFormXObject importPageAsForm(int pn,
+            PDRectangle frame) throws IOException {
+
+        BookletEvents.Import event = BookletEvents.ENABLED
+                ? new BookletEvents.Import() : null;
+        if (event != null) {
+            event.begin();
+        }
+
+        PDFormXObject form;
+        final boolean rasterized = (rasterizer != null)
+                && (rasterizer.isSubmitted(pn));
+        if (rasterized) {
+            form = rasterizer.getForm(stagingDoc, pn, frame);
+        } else {
+            form = importer.importPageAsForm(sourcePages.get(pn));
+        }
+
+        if (event != null) {
+            event.end();
+        }
+        if ((event != null) && event.shouldCommit()) {
+            event.page = pn + 1;
+            event.rasterized = rasterized;
+            event.contentBytes = getContentLength(sourcePages.get(pn));
+            event.commit();
+        }
+
+        return form;
+    }
+
+    /**
+     * Get the encoded size of the content streams of a page.
+     *
+     * @param source page to measure.
+     * @return the total length of the page content streams in bytes.
+     */
+    private static long getContentLength(PDPage source) {
+        long length = 0;
+        Iterator<PDStream> streams = source.getContentStreams();
+        while (streams.hasNext()) {
+            length += streams.next().getCOSObject().getLength();
+        }
+
+        return length;
+    }
+
+    /**
+     * Scale and rotate a landscape page to fit on the portrait page size of
+     * the generated PDF being imposed.
+     *
+     * @param copyPage to add to document (in landscape orientation).
+     * @param flip flag to indicate if the images should be rotated clockwise.
+     */
+    private void addPageToPdf(PDPage copyPage, boolean flip) {
+
+        PDPage outputSize = new PDPage(target.pageSize);
+        PDRectangle outputPage = outputSize.getCropBox();
+        PDPageContentStream stream; // Current stream of "target".
+
+        final double degrees = Math.toRadians(flip ? 270 : 90);
+        Matrix matrix = Matrix.getRotateInstance(degrees, 0, 0);
+
+        PDRectangle cropBox = copyPage.getCropBox();
+        final float iw = cropBox.getWidth();
+        final float ih = cropBox.getHeight();
+        final float ow = outputPage.getWidth();
+        final float oh = outputPage.getHeight();
+
+        final float sw = ow / ih;
+        final float sh = oh / iw;
+
+        float scale;
+        float dx = 0.0f;
+        float dy = 0.0f;
+        if (sw < sh) {
+            scale = sw;
+            // Centre the pages on the output sheet.
+            dx = (oh - (iw * scale)) / (2 * scale);
+        }
+        else {
+            scale = sh;
+            // Centre the pages on the output sheet.
+            dy = (ow - (ih * scale)) / (2 * scale);
+        }
+
+        if (downsampler != null) {
+            downsampler.addPage(copyPage, scale);
+        }
+
+        BookletEvents.Transform event = BookletEvents.ENABLED
+                ? new BookletEvents.Transform() : null;
+        if (event != null) {
+            event.begin();
+        }
+
+        float tx = iw / 2;
+        float ty = ih / 2;
+
+        try {
+            stream = new PDPageContentStream(target.outputDoc, copyPage,
+                    PDPageContentStream.AppendMode.PREPEND, false, false);
+
+            stream.transform(Matrix.getTranslateInstance(tx, ty));
+            stream.transform(matrix);
+            stream.transform(Matrix.getScaleInstance(scale, scale));
+
+            if (flip) {
+                ty = tx / scale;
+                tx -= (ih - oh) / (2 * scale);
+                ty -= dy;
+            }
+            else {
+                tx = ty / scale;
+                ty -= (iw - ow) / (2 * scale);
+                tx -= dx;
+            }
+
+            stream.transform(Matrix.getTranslateInstance(-tx, -ty));
+
+            copyPage.setMediaBox(outputSize.getMediaBox());
+            copyPage.setCropBox(outputSize.getCropBox());
+
+            stream.close();
+        } catch (IOException e) {
+        }
+
+        if (event != null) {
+            event.end();
+        }
+        if ((event != null) && event.shouldCommit()) {
+            event.side = sideCount - 1;
+            event.scale = scale;
+            event.commit();
+        }
+
+    }
+
+}
@@ -0,0 +1,71 @@
+/*  PDFBook - a simple application to generate a booklet from of a PDF.
+ *
+ *  Copyright 2020 Philip Lockett.
+ *
+ *  This file is part of PDFBook.
+ *
+ *  PDFBook is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  PDFBook is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with PDFBook.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+ /*
+ * BookletEngine generates booklets described by BookletJob. The engine holds
+ * no state of its own: each call to generate() keeps everything it needs in a
+ * new BookletContext. A single engine can therefore be shared, for example by
+ * a server, and used to generate any number of booklets at the same time from
+ * different threads.
+ *
+ * Example usage:
+ *  BookletEngine engine = new BookletEngine();
+ *  engine.generate(new BookletJob.Builder("a.pdf", "a-book.pdf").build(), null);
+ */
+package com.phillockett65;
+
+/**
+ *
+ * @author Phil
+ */
+public final class BookletEngine {
+
+    /**
+     * Receives the progress of a run and can ask for it to stop.
+     */
+    public interface Progress {
+
+        /**
+         * Update the progress after a section has been added.
+         *
+         * @param percent of the selected pages added so far (0 to 100).
+         */
+        void update(int percent);
+
+        /**
+         * @return true if the run should stop after the current section
+         * without saving the booklet, false otherwise.
+         */
+        boolean isCancelled();
+    }
+
+    /**
+     * Generate a booklet.
+     *
+     * @param job settings of the booklet to generate.
+     * @param progress to update with progress, or null to log each section to
+     * the console.
+     * @return true if the generated PDFs were saved, false otherwise.
+     */
+    public boolean generate(BookletJob job, Progress progress) {
+        return new BookletContext(job, progress).run();
+    }
+
+}
@@ -0,0 +1,196 @@
+/*  PDFBook - a simple application to generate a booklet from of a PDF.
+ *
+ *  Copyright 2020 Philip Lockett.
+ *
+ *  This file is part of PDFBook.
+ *
+ *  PDFBook is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  PDFBook is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with PDFBook.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+ /*
+ * BookletEvents defines the Java Flight Recorder events emitted by PDFBook for
+ * each phase of generating a booklet: loading the source, importing each
+ * source page, waiting for each section to be imported, transforming each
+ * sheet side, imposing each section and saving the result. Pages are imported
+ * by the section loader thread, ahead of the thread imposing them, so Import
+ * events overlap the other phases rather than being part of them. The events
+ * cost next to nothing unless a recording is running, for example:
+ *
+ *  java -XX:StartFlightRecording=filename=pdfbook.jfr -jar PDFBook.jar ...
+ *
+ * and can be examined with "jfr print --categories PDFBook pdfbook.jfr" or
+ * JDK Mission Control.
+ *
+ * Flight Recorder is only part of Java 8 from update 262, so the events are
+ * only created when ENABLED is true. On older runtimes loading an event class
+ * would fail, so booklets are generated without events instead.
+ */
+package com.phillockett65;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ *
+ * @author Phil
+ */
+final class BookletEvents {
+
+    // True if the runtime has Flight Recorder, so the events can be created.
+    static final boolean ENABLED = isAvailable();
+
+
+    private BookletEvents() {
+    }
+
+    /**
+     * Check whether the runtime has Flight Recorder, without loading any of
+     * the event classes.
+     *
+     * @return true if jdk.jfr.Event can be loaded, false otherwise.
+     */
+    private static boolean isAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event", false,
+                    BookletEvents.class.getClassLoader());
+
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * Loading the source PDF document.
+     */
+    @Name("com.phillockett65.Load")
+    @Label("Load Source")
+    @Category("PDFBook")
+    static final class Load extends Event {
+        @Label("Source")
+        String source;
+
+        @Label("Pages")
+        int pages;
+
+        @Label("File Size")
+        @DataAmount
+        long bytes;
+    }
+
+    /**
+     * Importing a source page as a form XObject, on the section loader thread.
+     */
+    @Name("com.phillockett65.Import")
+    @Label("Import Page")
+    @Category("PDFBook")
+    static final class Import extends Event {
+        @Label("Source Page")
+        @Description("Page number in the source PDF, starting from 1")
+        int page;
+
+        @Label("Content Bytes")
+        @Description("Encoded size of the source page content streams, "
+                + "excluding the resources cloned with them")
+        @DataAmount
+        long contentBytes;
+
+        @Label("Rasterized")
+        boolean rasterized;
+    }
+
+    /**
+     * Rotating and scaling one side of a sheet to fit the output page size.
+     */
+    @Name("com.phillockett65.Transform")
+    @Label("Transform Side")
+    @Category("PDFBook")
+    static final class Transform extends Event {
+        @Label("Side")
+        @Description("Running count of the sheet sides imposed")
+        int side;
+
+        @Label("Scale")
+        float scale;
+    }
+
+    /**
+     * The imposing thread waiting for the section loader to import the pages
+     * of the next section.
+     */
+    @Name("com.phillockett65.Wait")
+    @Label("Wait for Section")
+    @Category("PDFBook")
+    static final class Wait extends Event {
+        @Label("First Page")
+        @Description("First source page of the section, starting from 1")
+        int firstPage;
+
+        @Label("Last Page")
+        @Description("Last source page of the section, starting from 1")
+        int lastPage;
+    }
+
+    /**
+     * Imposing one section of pages on every generated document, including
+     * transforming each sheet side and any wait for the section loader, but
+     * not importing the pages, which the loader does beforehand.
+     */
+    @Name("com.phillockett65.Section")
+    @Label("Impose Section")
+    @Category("PDFBook")
+    static final class Section extends Event {
+        @Label("Section")
+        int section;
+
+        @Label("First Sheet")
+        @Description("Index of the first sheet of the section")
+        int sheet;
+
+        @Label("First Page")
+        @Description("First source page of the section, starting from 1")
+        int firstPage;
+
+        @Label("Last Page")
+        @Description("Last source page of the section, starting from 1")
+        int lastPage;
+
+        @Label("Reused")
+        @Description("Section kept from the previous booklet")
+        boolean reused;
+    }
+
+    /**
+     * Saving the generated PDF document.
+     */
+    @Name("com.phillockett65.Save")
+    @Label("Save Booklet")
+    @Category("PDFBook")
+    static final class Save extends Event {
+        @Label("Output")
+        String output;
+
+        @Label("Pages")
+        int pages;
+
+        @Label("File Size")
+        @DataAmount
+        long bytes;
+    }
+
+}
@@ -0,0 +1,457 @@
+/*  PDFBook - a simple application to generate a booklet from of a PDF.
+ *
+ *  Copyright 2020 Philip Lockett.
+ *
+ *  This file is part of PDFBook.
+ *
+ *  PDFBook is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  PDFBook is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with PDFBook.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+ /*
+ * BookletJob holds the settings for generating one booklet: the source PDF,
+ * the generated PDF and every option that affects how it is generated. A job
+ * cannot be changed once built, so it can be handed to BookletEngine from any
+ * thread and reused for as many runs as needed. Jobs are created with
+ * BookletJob.Builder, which checks the settings are valid.
+ *
+ * Example usage:
+ *  BookletJob job = new BookletJob.Builder("source.pdf", "booklet.pdf")
+ *          .setPageSize(PDRectangle.A4).setSheetCount(4).build();
+ *  new BookletEngine().generate(job, null);
+ */
+package com.phillockett65;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+
+/**
+ *
+ * @author Phil
+ */
+public final class BookletJob {
+
+    private final String sourcePDF;     // The source PDF filepath.
+    private final List<Output> outputs; // The generated PDFs, primary first.
+    private final int sheetCount;
+    private final int firstPage;
+    private final int lastPage;
+    private final boolean rotate;
+    private final int rasterThreshold;
+    private final float rasterDPI;
+    private final float imageDPI;
+    private final boolean linearize;
+    private final boolean incremental;
+    private final int writeBuffer;
+    private final boolean sync;
+    private final boolean compact;
+
+
+    /**
+     * A generated PDF and the page size it is imposed on.
+     */
+    public static final class Output {
+        private final float width;
+        private final float height;
+        private final String outputPDF;
+
+        private Output(PDRectangle size, String outPDF) {
+            width = size.getWidth();
+            height = size.getHeight();
+            outputPDF = outPDF;
+        }
+
+        /**
+         * @return a copy of the page size of the generated PDF.
+         */
+        public PDRectangle getPageSize() {
+            return new PDRectangle(width, height);
+        }
+
+        /**
+         * @return the file path of the generated PDF.
+         */
+        public String getOutputPDF() {
+            return outputPDF;
+        }
+    }
+
+    /**
+     * Constructor, used by Builder.build().
+     *
+     * @param builder holding the validated settings.
+     */
+    private BookletJob(Builder builder) {
+        sourcePDF = builder.sourcePDF;
+        outputs = Collections.unmodifiableList(
+                new ArrayList<>(builder.outputs));
+        sheetCount = builder.sheetCount;
+        firstPage = builder.firstPage;
+        lastPage = builder.lastPage;
+        rotate = builder.rotate;
+        rasterThreshold = builder.rasterThreshold;
+        rasterDPI = builder.rasterDPI;
+        imageDPI = builder.imageDPI;
+        linearize = builder.linearize;
+        incremental = builder.incremental;
+        writeBuffer = builder.writeBuffer;
+        sync = builder.sync;
+        compact = builder.compact;
+    }
+
+    /**
+     * @return the file path of the source PDF.
+     */
+    public String getSourcePDF() {
+        return sourcePDF;
+    }
+
+    /**
+     * @return the file path of the primary generated PDF.
+     */
+    public String getOutputPDF() {
+        return outputs.get(0).getOutputPDF();
+    }
+
+    /**
+     * @return a copy of the page size of the primary generated PDF.
+     */
+    public PDRectangle getPageSize() {
+        return outputs.get(0).getPageSize();
+    }
+
+    /**
+     * @return every generated PDF, the primary one first.
+     */
+    public List<Output> getOutputs() {
+        return outputs;
+    }
+
+    /**
+     * @return the number of sheets in a section (4 pages to a sheet).
+     */
+    public int getSheetCount() {
+        return sheetCount;
+    }
+
+    /**
+     * @return the first page to add to the booklet, starting from 0.
+     */
+    public int getFirstPage() {
+        return firstPage;
+    }
+
+    /**
+     * @return the page after the last page to add to the booklet, which is
+     * limited to the number of pages in the source PDF when it is generated.
+     */
+    public int getLastPage() {
+        return lastPage;
+    }
+
+    /**
+     * @return true if the reverse side of each sheet is rotated.
+     */
+    public boolean isRotate() {
+        return rotate;
+    }
+
+    /**
+     * @return the XObject count at which source pages are rendered as images,
+     * negative if pages are never rendered.
+     */
+    public int getRasterThreshold() {
+        return rasterThreshold;
+    }
+
+    /**
+     * @return the resolution of rendered pages in dots per inch.
+     */
+    public float getRasterDPI() {
+        return rasterDPI;
+    }
+
+    /**
+     * @return the resolution images are downsampled to, 0 if they are not.
+     */
+    public float getImageDPI() {
+        return imageDPI;
+    }
+
+    /**
+     * @return true if the generated PDF is linearized.
+     */
+    public boolean isLinearize() {
+        return linearize;
+    }
+
+    /**
+     * @return true if only the changed sections are rebuilt.
+     */
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * @return the size of the buffer used to save the generated PDF, 0 if it
+     * is saved directly.
+     */
+    public int getWriteBuffer() {
+        return writeBuffer;
+    }
+
+    /**
+     * @return true if the generated PDF is forced to disk before renaming and
+     * its directory after.
+     */
+    public boolean isSync() {
+        return sync;
+    }
+
+    /**
+     * @return true if unused resources are removed and uncompressed streams
+     * are compressed before the generated PDF is saved.
+     */
+    public boolean isCompact() {
+        return compact;
+    }
+
+    /**
+     * Collects the settings for a BookletJob. The defaults match those of
+     * PDFBook: Letter pages, 1 sheet sections, every page of the source and
+     * the reverse side rotated.
+     */
+    public static final class Builder {
+        private final String sourcePDF;
+        private final List<Output> outputs = new ArrayList<>();
+        private int sheetCount = 1;
+        private int firstPage = 0;
+        private int lastPage = Integer.MAX_VALUE;
+        private boolean rotate = true;
+        private int rasterThreshold = -1;
+        private float rasterDPI = 300;
+        private float imageDPI = 0;
+        private boolean linearize = false;
+        private boolean incremental = false;
+        private int writeBuffer = 0;
+        private boolean sync = false;
+        private boolean compact = false;
+
+        /**
+         * Constructor.
+         *
+         * @param inPDF file path for source PDF.
+         * @param outPDF file path for generated PDF.
+         */
+        public Builder(String inPDF, String outPDF) {
+            sourcePDF = inPDF;
+            outputs.add(new Output(PDRectangle.LETTER, outPDF));
+        }
+
+        /**
+         * @param size of standard portrait page defined by PDRectangle.
+         * @return this builder.
+         */
+        public Builder setPageSize(PDRectangle size) {
+            check(size != null, "Page size must be given");
+            outputs.set(0, new Output(size, outputs.get(0).getOutputPDF()));
+
+            return this;
+        }
+
+        /**
+         * @param count of sheets in a section (1 to 6).
+         * @return this builder.
+         */
+        public Builder setSheetCount(int count) {
+            sheetCount = count;
+
+            return this;
+        }
+
+        /**
+         * @param first page to add to the booklet, starting from 0.
+         * @param last page after the last page to add to the booklet.
+         * @return this builder.
+         */
+        public Builder setPageRange(int first, int last) {
+            firstPage = first;
+            lastPage = last;
+
+            return this;
+        }
+
+        /**
+         * @param flip true if the reverse side should be rotated.
+         * @return this builder.
+         */
+        public Builder setRotate(boolean flip) {
+            rotate = flip;
+
+            return this;
+        }
+
+        /**
+         * @param threshold XObject count at which pages are rendered, 0 to
+         * render every page or a negative value to never render pages.
+         * @return this builder.
+         */
+        public Builder setRasterThreshold(int threshold) {
+            rasterThreshold = threshold;
+
+            return this;
+        }
+
+        /**
+         * @param dpi resolution of rendered pages in dots per inch.
+         * @return this builder.
+         */
+        public Builder setRasterDPI(float dpi) {
+            rasterDPI = dpi;
+
+            return this;
+        }
+
+        /**
+         * @param dpi target resolution of images in dots per inch, 0 to leave
+         * images untouched.
+         * @return this builder.
+         */
+        public Builder setImageDPI(float dpi) {
+            imageDPI = dpi;
+
+            return this;
+        }
+
+        /**
+         * @param fast true if the generated PDF should be linearized.
+         * @return this builder.
+         */
+        public Builder setLinearize(boolean fast) {
+            linearize = fast;
+
+            return this;
+        }
+
+        /**
+         * @param changes true to only rebuild changed sections.
+         * @return this builder.
+         */
+        public Builder setIncremental(boolean changes) {
+            incremental = changes;
+
+            return this;
+        }
+
+        /**
+         * @param size of the write buffer in bytes, 0 to save directly.
+         * @return this builder.
+         */
+        public Builder setWriteBuffer(int size) {
+            writeBuffer = size;
+
+            return this;
+        }
+
+        /**
+         * @param force true if the PDF should be forced to disk.
+         * @return this builder.
+         */
+        public Builder setSync(boolean force) {
+            sync = force;
+
+            return this;
+        }
+
+        /**
+         * @param smaller true if the generated PDF should be compacted.
+         * @return this builder.
+         */
+        public Builder setCompact(boolean smaller) {
+            compact = smaller;
+
+            return this;
+        }
+
+        /**
+         * @param size of standard portrait page defined by PDRectangle.
+         * @param outPDF file path for the PDF generated on this page size.
+         * @return this builder.
+         */
+        public Builder addTarget(PDRectangle size, String outPDF) {
+            check(size != null, "Page size must be given");
+            outputs.add(new Output(size, outPDF));
+
+            return this;
+        }
+
+        /**
+         * Check the settings and create the job.
+         *
+         * @return the job.
+         * @throws IllegalArgumentException if a setting is invalid.
+         */
+        public BookletJob build() {
+            check((sourcePDF != null) && !sourcePDF.isEmpty(),
+                    "Source PDF must be given");
+            check((sheetCount >= 1) && (sheetCount <= 6),
+                    "Sheet count must be 1 to 6: " + sheetCount);
+            check((firstPage >= 0) && (firstPage <= lastPage),
+                    "Invalid page range: " + firstPage + " to " + lastPage);
+            check(rasterDPI > 0, "Raster DPI must be positive: " + rasterDPI);
+            check(imageDPI >= 0, "Image DPI must not be negative: "
+                    + imageDPI);
+            check(writeBuffer >= 0, "Write buffer must not be negative: "
+                    + writeBuffer);
+
+            final String source = new File(sourcePDF).getAbsolutePath();
+            Set<String> paths = new HashSet<>();
+            for (Output output : outputs) {
+                check((output.width > 0) && (output.height > 0),
+                        "Page size must not be empty");
+                check((output.outputPDF != null)
+                        && !output.outputPDF.isEmpty(),
+                        "Output PDF must be given");
+
+                final String path = new File(output.outputPDF)
+                        .getAbsolutePath();
+                check(!path.equals(source),
+                        "Output PDF would replace the source PDF: " + path);
+                check(paths.add(path),
+                        "Output PDF is used twice: " + output.outputPDF);
+            }
+
+            return new BookletJob(this);
+        }
+
+        /**
+         * Throw an exception if a setting is invalid.
+         *
+         * @param valid true if the setting is valid.
+         * @param message describing the problem.
+         * @throws IllegalArgumentException if the setting is invalid.
+         */
+        private static void check(boolean valid, String message) {
+            if (!valid) {
+                throw new IllegalArgumentException(message);
+            }
+        }
+    }
+
+}
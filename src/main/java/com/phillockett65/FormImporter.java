@@ -0,0 +1,275 @@
+/*  PDFBook - a simple application to generate a booklet from of a PDF.
+ *
+ *  Copyright 2020 Philip Lockett.
+ *
+ *  This file is part of PDFBook.
+ *
+ *  PDFBook is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  PDFBook is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with PDFBook.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+ /*
+ * FormImporter imports pages of a source PDF document into a target document
+ * as form XObjects, in the same way as LayerUtility.importPageAsForm().
+ *
+ * LayerUtility decodes the content of every page and encodes it again with
+ * Flate. FormImporter instead copies the encoded bytes of a page with a single
+ * content stream, with its Filter and DecodeParms entries, straight into the
+ * form stream, so content is never decompressed. Only pages whose content is
+ * split over several streams are decoded, as the streams must be joined.
+ *
+ * One PDFCloneUtility is used for all pages, so resources shared between
+ * pages, such as fonts and images, are only cloned once.
+ */
+package com.phillockett65;
+
+import java.awt.geom.AffineTransform;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.fontbox.util.BoundingBox;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.multipdf.PDFCloneUtility;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDDocumentCatalog;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.common.PDStream;
+import org.apache.pdfbox.pdmodel.graphics.form.PDFormXObject;
+import org.apache.pdfbox.pdmodel.graphics.optionalcontent.PDOptionalContentProperties;
+
+/**
+ *
+ * @author Phil
+ */
+class FormImporter {
+
+    // Page entries copied to the form, as done by LayerUtility.
+    private static final COSName[] PAGE_TO_FORM = {
+        COSName.GROUP, COSName.LAST_MODIFIED, COSName.METADATA
+    };
+
+    private final PDDocument sourceDoc;
+    private final PDDocument targetDoc;
+    private final PDFCloneUtility cloner;
+    private final byte[] buffer = new byte[64 * 1024];
+
+
+    /**
+     * Constructor.
+     *
+     * @param source document to import pages from.
+     * @param target document to import pages into.
+     */
+    public FormImporter(PDDocument source, PDDocument target) {
+        sourceDoc = source;
+        targetDoc = target;
+        cloner = new PDFCloneUtility(target);
+    }
+
+    /**
+     * Import a page of the source document as a form XObject.
+     *
+     * @param page of the source document to import.
+     * @return the form XObject for the page.
+     * @throws IOException if the page could not be imported.
+     */
+    public PDFormXObject importPageAsForm(PDPage page) throws IOException {
+        PDFormXObject form = new PDFormXObject(getContent(page));
+
+        // Copy resources.
+        PDResources pageRes = page.getResources();
+        PDResources formRes = new PDResources();
+        if (pageRes != null) {
+            cloner.cloneMerge(pageRes, formRes);
+        }
+        form.setResources(formRes);
+
+        // Transfer some values from page to form.
+        COSDictionary pageDict = page.getCOSObject();
+        COSStream formDict = form.getCOSObject();
+        for (COSName key : PAGE_TO_FORM) {
+            COSBase value = pageDict.getItem(key);
+            if (value != null) {
+                formDict.setItem(key, cloner.cloneForNewDocument(value));
+            }
+        }
+
+        // Map the visible area of the page, allowing for any rotation, on to
+        // the origin of the form.
+        AffineTransform at = form.getMatrix().createAffineTransform();
+        PDRectangle mediaBox = page.getMediaBox();
+        PDRectangle cropBox = page.getCropBox();
+        PDRectangle viewBox = (cropBox != null ? cropBox : mediaBox);
+
+        at.translate(mediaBox.getLowerLeftX() - viewBox.getLowerLeftX(),
+                mediaBox.getLowerLeftY() - viewBox.getLowerLeftY());
+        switch (page.getRotation()) {
+            case 90:
+                at.scale(viewBox.getWidth() / viewBox.getHeight(),
+                        viewBox.getHeight() / viewBox.getWidth());
+                at.translate(0, viewBox.getWidth());
+                at.rotate(-Math.PI / 2.0);
+                break;
+            case 180:
+                at.translate(viewBox.getWidth(), viewBox.getHeight());
+                at.rotate(-Math.PI);
+                break;
+            case 270:
+                at.translate(viewBox.getHeight(), 0);
+                at.rotate(-Math.PI * 1.5);
+                break;
+            default:
+                break;
+        }
+        at.translate(-viewBox.getLowerLeftX(), -viewBox.getLowerLeftY());
+        if (!at.isIdentity()) {
+            form.setMatrix(at);
+        }
+
+        BoundingBox bbox = new BoundingBox();
+        bbox.setLowerLeftX(viewBox.getLowerLeftX());
+        bbox.setLowerLeftY(viewBox.getLowerLeftY());
+        bbox.setUpperRightX(viewBox.getUpperRightX());
+        bbox.setUpperRightY(viewBox.getUpperRightY());
+        form.setBBox(new PDRectangle(bbox));
+
+        return form;
+    }
+
+    /**
+     * Create the form stream holding the content of a page. A single content
+     * stream is copied in its encoded form, multiple streams are joined and
+     * encoded with Flate.
+     *
+     * @param page to get the content of.
+     * @return the stream for the form.
+     * @throws IOException if the content could not be copied.
+     */
+    private PDStream getContent(PDPage page) throws IOException {
+        COSBase contents = page.getCOSObject().getDictionaryObject(
+                COSName.CONTENTS);
+
+        if (contents instanceof COSStream) {
+            COSStream source = (COSStream) contents;
+            COSStream target = targetDoc.getDocument().createCOSStream();
+
+            InputStream in = source.createRawInputStream();
+            try {
+                OutputStream out = target.createRawOutputStream();
+                try {
+                    int count;
+                    while ((count = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, count);
+                    }
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+
+            COSBase filter = source.getItem(COSName.FILTER);
+            if (filter != null) {
+                target.setItem(COSName.FILTER,
+                        cloner.cloneForNewDocument(filter));
+            }
+            COSBase parms = source.getItem(COSName.DECODE_PARMS);
+            if (parms != null) {
+                target.setItem(COSName.DECODE_PARMS,
+                        cloner.cloneForNewDocument(parms));
+            }
+
+            return new PDStream(target);
+        }
+
+        return new PDStream(targetDoc, page.getContents(), COSName.FLATE_DECODE);
+    }
+
+    /**
+     * Copy the optional content properties of the source document to the
+     * document the booklet is saved from, as done by LayerUtility for each
+     * imported page. This only needs to be done once for each document.
+     *
+     * The cloner returns the same clone every time, but LayerUtility adds the
+     * layers of each document to its optional content properties, so each
+     * document gets its own copy of the dictionaries and arrays. The groups
+     * themselves are shared, as the imported forms refer to them.
+     *
+     * @param destDoc document to copy the optional content properties to,
+     * which may differ from the target document the pages are imported into.
+     * @throws IOException if the optional content could not be copied.
+     */
+    public void importOcProperties(PDDocument destDoc) throws IOException {
+        PDDocumentCatalog srcCatalog = sourceDoc.getDocumentCatalog();
+        PDOptionalContentProperties srcOCProperties =
+                srcCatalog.getOCProperties();
+        if (srcOCProperties == null) {
+            return;
+        }
+
+        PDDocumentCatalog destCatalog = destDoc.getDocumentCatalog();
+        PDOptionalContentProperties destOCProperties =
+                destCatalog.getOCProperties();
+        if (destOCProperties == null) {
+            destCatalog.setOCProperties(new PDOptionalContentProperties(
+                    (COSDictionary) copyContainers(cloner.cloneForNewDocument(
+                            srcOCProperties))));
+        } else {
+            cloner.cloneMerge(srcOCProperties, destOCProperties);
+        }
+    }
+
+    /**
+     * Copy the dictionaries and arrays of cloned optional content properties,
+     * but not the optional content groups and membership dictionaries they
+     * refer to.
+     *
+     * @param base cloned object to copy.
+     * @return the copy, or the object itself if it is not copied.
+     */
+    private static COSBase copyContainers(COSBase base) {
+        if (base instanceof COSArray) {
+            COSArray copy = new COSArray();
+            for (COSBase item : (COSArray) base) {
+                copy.add(copyContainers(item));
+            }
+
+            return copy;
+        }
+
+        if ((base instanceof COSDictionary) && !(base instanceof COSStream)) {
+            COSDictionary dict = (COSDictionary) base;
+            COSName type = dict.getCOSName(COSName.TYPE);
+            if (COSName.OCG.equals(type) || COSName.OCMD.equals(type)) {
+                return dict;
+            }
+
+            COSDictionary copy = new COSDictionary();
+            for (COSName key : dict.keySet()) {
+                copy.setItem(key, copyContainers(dict.getItem(key)));
+            }
+
+            return copy;
+        }
+
+        return base;
+    }
+
+}
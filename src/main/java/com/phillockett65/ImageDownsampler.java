@@ -0,0 +1,392 @@
+/*  PDFBook - a simple application to generate a booklet from of a PDF.
+ *
+ *  Copyright 2020 Philip Lockett.
+ *
+ *  This file is part of PDFBook.
+ *
+ *  PDFBook is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  PDFBook is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with PDFBook.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+ /*
+ * ImageDownsampler reduces the resolution of images in the generated PDF that
+ * exceed a target resolution once the source pages have been scaled to fit on
+ * the output sheet.
+ *
+ * The effective resolution of an image is calculated from its pixel size and
+ * the size of the imported page it is drawn on, scaled by the factor used by
+ * BookletContext.addPageToPdf(). As an image is assumed to be no larger than
+ * the page it is drawn on, the calculated resolution is never more than the
+ * actual resolution, so images are never reduced below the target.
+ *
+ * Each image is processed once, even if it is shared between pages, using the
+ * highest resolution needed by any page that draws it. Decoding, scaling and
+ * re-encoding are performed in parallel. JPEG images are re-encoded as JPEG,
+ * all others are re-encoded losslessly (Flate). Only gray and RGB images of 8
+ * or more bits per component are processed, masked images and images with a
+ * Decode array are left untouched.
+ */
+package com.phillockett65;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.graphics.PDXObject;
+import org.apache.pdfbox.pdmodel.graphics.color.PDColorSpace;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceGray;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceRGB;
+import org.apache.pdfbox.pdmodel.graphics.color.PDICCBased;
+import org.apache.pdfbox.pdmodel.graphics.form.PDFormXObject;
+import org.apache.pdfbox.pdmodel.graphics.image.JPEGFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+
+/**
+ *
+ * @author Phil
+ */
+class ImageDownsampler {
+
+    private static final float JPEG_QUALITY = 0.85f;
+
+    private final float targetDPI;      // Resolution not to be exceeded.
+    private final int threads;          // Images to process in parallel.
+
+    // Pixels needed for the largest dimension of each image.
+    private final Map<COSStream, Float> required = new IdentityHashMap<>();
+    // Every XObject dictionary entry that refers to each image.
+    private final Map<COSStream, List<Use>> uses = new IdentityHashMap<>();
+    // Forms already visited, with the largest extent they were visited at.
+    private final Map<COSStream, Float> visited = new IdentityHashMap<>();
+
+
+    /**
+     * A reference to an image from an XObject resource dictionary.
+     */
+    private static class Use {
+        private final COSDictionary xobjects;
+        private final COSName name;
+
+        private Use(COSDictionary dict, COSName key) {
+            xobjects = dict;
+            name = key;
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param dpi target resolution in dots per inch.
+     * @param count number of images to process in parallel.
+     */
+    public ImageDownsampler(float dpi, int count) {
+        targetDPI = dpi;
+        threads = count;
+    }
+
+    /**
+     * Record the images drawn on a page of the generated PDF and the
+     * resolution they need.
+     *
+     * @param page of the generated PDF holding imported source pages.
+     * @param scale applied to the page to fit it on the output sheet.
+     */
+    public void addPage(PDPage page, float scale) {
+        PDResources resources = page.getResources();
+        if (resources == null) {
+            return;
+        }
+
+        COSDictionary xobjects =
+                resources.getCOSObject().getCOSDictionary(COSName.XOBJECT);
+        if (xobjects == null) {
+            return;
+        }
+
+        // Each XObject of the page is an imported source page, so its bounding
+        // box gives the size of the source page.
+        for (COSName name : xobjects.keySet()) {
+            COSBase base = xobjects.getDictionaryObject(name);
+            if (!(base instanceof COSStream)) {
+                continue;
+            }
+
+            COSStream xobject = (COSStream) base;
+            if (!COSName.FORM.equals(xobject.getCOSName(COSName.SUBTYPE))) {
+                continue;
+            }
+
+            PDRectangle bbox = new PDFormXObject(xobject).getBBox();
+            if (bbox == null) {
+                continue;
+            }
+
+            final float size = Math.max(bbox.getWidth(), bbox.getHeight());
+            addForm(xobject, size * scale);
+        }
+    }
+
+    /**
+     * Record the images drawn by a form, and by any nested forms.
+     *
+     * @param form to search for images.
+     * @param extent largest dimension of the form on the sheet in points.
+     */
+    private void addForm(COSStream form, float extent) {
+        Float previous = visited.get(form);
+        if ((previous != null) && (previous >= extent)) {
+            return;
+        }
+        visited.put(form, extent);
+
+        COSDictionary resources = form.getCOSDictionary(COSName.RESOURCES);
+        if (resources == null) {
+            return;
+        }
+        COSDictionary xobjects = resources.getCOSDictionary(COSName.XOBJECT);
+        if (xobjects == null) {
+            return;
+        }
+
+        for (COSName name : xobjects.keySet()) {
+            COSBase base = xobjects.getDictionaryObject(name);
+            if (!(base instanceof COSStream)) {
+                continue;
+            }
+
+            COSStream xobject = (COSStream) base;
+            COSName subtype = xobject.getCOSName(COSName.SUBTYPE);
+            if (COSName.FORM.equals(subtype)) {
+                addForm(xobject, extent);
+            } else if (COSName.IMAGE.equals(subtype)) {
+                addImage(xobjects, name, xobject, extent);
+            }
+        }
+    }
+
+    /**
+     * Record an image and the resolution it needs.
+     *
+     * @param xobjects dictionary that refers to the image.
+     * @param name of the image in xobjects.
+     * @param image stream to record.
+     * @param extent largest dimension of the image on the sheet in points.
+     */
+    private void addImage(COSDictionary xobjects, COSName name,
+            COSStream image, float extent) {
+
+        List<Use> list = uses.get(image);
+        if (list == null) {
+            list = new ArrayList<>();
+            uses.put(image, list);
+        }
+        list.add(new Use(xobjects, name));
+
+        // Pixels needed for the largest dimension, per point of the image.
+        final float pixels = targetDPI * extent / 72;
+        Float previous = required.get(image);
+        if ((previous == null) || (pixels > previous)) {
+            required.put(image, pixels);
+        }
+    }
+
+    /**
+     * Downsample and re-encode all recorded images that exceed the target
+     * resolution, then replace every reference to them.
+     *
+     * @return the number of images that were downsampled.
+     * @throws IOException if an image could not be decoded or encoded.
+     */
+    public int process() throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        Map<COSStream, Future<COSStream>> results = new IdentityHashMap<>();
+
+        try {
+            for (Map.Entry<COSStream, Float> entry : required.entrySet()) {
+                final PDImageXObject image = getImage(entry.getKey());
+                if (image == null) {
+                    continue;
+                }
+
+                final int size = Math.max(image.getWidth(), image.getHeight());
+                final float factor = entry.getValue() / size;
+                if (factor >= 1) {
+                    continue;
+                }
+
+                results.put(entry.getKey(), pool.submit(
+                        new Callable<COSStream>() {
+                    @Override
+                    public COSStream call() throws Exception {
+                        return downsample(image, factor);
+                    }
+                }));
+            }
+
+            for (Map.Entry<COSStream, Future<COSStream>> entry :
+                    results.entrySet()) {
+                COSStream replacement = entry.getValue().get();
+                for (Use use : uses.get(entry.getKey())) {
+                    use.xobjects.setItem(use.name, replacement);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted downsampling images", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed downsampling image", e);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        return results.size();
+    }
+
+    /**
+     * Get an image that is suitable for downsampling.
+     *
+     * @param stream of the image XObject.
+     * @return the image, or null if it should be left untouched.
+     * @throws IOException if the image could not be created.
+     */
+    private static PDImageXObject getImage(COSStream stream)
+            throws IOException {
+
+        if (stream.containsKey(COSName.SMASK)
+                || stream.containsKey(COSName.MASK)
+                || stream.containsKey(COSName.DECODE)
+                || stream.getBoolean(COSName.IMAGE_MASK, false)) {
+            return null;
+        }
+
+        PDXObject xobject = PDXObject.createXObject(stream, null);
+        if (!(xobject instanceof PDImageXObject)) {
+            return null;
+        }
+
+        PDImageXObject image = (PDImageXObject) xobject;
+        if (image.getBitsPerComponent() < 8) {
+            return null;
+        }
+
+        PDColorSpace cs = image.getColorSpace();
+        final boolean device = (cs instanceof PDDeviceGray)
+                || (cs instanceof PDDeviceRGB);
+        final boolean icc = (cs instanceof PDICCBased)
+                && (cs.getNumberOfComponents() != 4);
+        if (!device && !icc) {
+            return null;
+        }
+
+        return image;
+    }
+
+    /**
+     * Scale an image down and encode it as a new image XObject stream.
+     *
+     * A PDDocument cannot create streams on several threads at once, so the
+     * image is encoded in a document of its own and copied to a stream that
+     * is not tied to any document.
+     *
+     * @param image to downsample.
+     * @param factor to scale the image by (less than 1).
+     * @return the stream of the new image XObject.
+     * @throws IOException if the image could not be decoded or encoded.
+     */
+    private static COSStream downsample(PDImageXObject image, float factor)
+            throws IOException {
+
+        PDDocument doc = new PDDocument();
+        try {
+            COSStream encoded = encode(doc, image, factor).getCOSObject();
+            COSStream copy = new COSStream();
+            for (Map.Entry<COSName, COSBase> item : encoded.entrySet()) {
+                copy.setItem(item.getKey(), item.getValue());
+            }
+
+            InputStream in = encoded.createRawInputStream();
+            try {
+                OutputStream out = copy.createRawOutputStream();
+                try {
+                    IOUtils.copy(in, out);
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+
+            return copy;
+        } finally {
+            doc.close();
+        }
+    }
+
+    /**
+     * Scale an image down and encode it as a new image XObject.
+     *
+     * @param doc to create the image XObject in.
+     * @param image to downsample.
+     * @param factor to scale the image by (less than 1).
+     * @return the new image XObject.
+     * @throws IOException if the image could not be decoded or encoded.
+     */
+    private static PDImageXObject encode(PDDocument doc, PDImageXObject image,
+            float factor) throws IOException {
+
+        BufferedImage source = image.getImage();
+        final int w = Math.max(1, Math.round(source.getWidth() * factor));
+        final int h = Math.max(1, Math.round(source.getHeight() * factor));
+
+        final boolean gray = source.getColorModel().getNumColorComponents() == 1;
+        BufferedImage target = new BufferedImage(w, h,
+                gray ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = target.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+        g.setRenderingHint(RenderingHints.KEY_RENDERING,
+                RenderingHints.VALUE_RENDER_QUALITY);
+        g.drawImage(source, 0, 0, w, h, null);
+        g.dispose();
+
+        final String suffix = image.getSuffix();
+        if ("jpg".equals(suffix)) {
+            return JPEGFactory.createFromImage(doc, target, JPEG_QUALITY);
+        }
+
+        return LosslessFactory.createFromImage(doc, target);
+    }
+
+}
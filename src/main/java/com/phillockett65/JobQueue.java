@@ -0,0 +1,468 @@
+/*  PDFBook - a simple application to generate a booklet from of a PDF.
+ *
+ *  Copyright 2020 Philip Lockett.
+ *
+ *  This file is part of PDFBook.
+ *
+ *  PDFBook is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  PDFBook is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with PDFBook.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+ /*
+ * JobQueue is a window that lists the booklets queued from UserGui and
+ * generates them in order, several at a time. Each job shows its progress,
+ * throughput in source pages per second and elapsed time. Waiting jobs can be
+ * moved up or down the queue, and waiting or running jobs can be cancelled.
+ *
+ * Jobs are run with PDFBook.ProgressWorker. A running job stops at the end of
+ * the section it is imposing when it is cancelled, and its booklet is not
+ * saved. It still counts against the number of workers until it has stopped,
+ * and is shown as done if it was already saving when it was cancelled.
+ *
+ * Jobs that generate the same output PDF are run one after another, in queue
+ * order, so they never write the same file at the same time.
+ */
+package com.phillockett65;
+
+import java.awt.BorderLayout;
+import java.awt.Component;
+import java.awt.FlowLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import javax.swing.JButton;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JProgressBar;
+import javax.swing.JScrollPane;
+import javax.swing.JSpinner;
+import javax.swing.JTable;
+import javax.swing.ListSelectionModel;
+import javax.swing.SpinnerNumberModel;
+import javax.swing.Timer;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import javax.swing.table.AbstractTableModel;
+import javax.swing.table.TableCellRenderer;
+
+/**
+ *
+ * @author Phil
+ */
+public class JobQueue extends JFrame {
+
+    private static final long serialVersionUID = 1L;
+    private static final int MAX_WORKERS = 8;
+
+    private final List<Job> jobs = new ArrayList<>();
+    private final JobTableModel model = new JobTableModel();
+    private final JTable table = new JTable(model);
+    private final JSpinner workersjSpinner = new JSpinner(
+            new SpinnerNumberModel(2, 1, MAX_WORKERS, 1));
+    private int running = 0;            // Number of jobs being generated.
+
+
+    /**
+     * The states of a queued job.
+     */
+    private enum Status {
+        WAITING("Waiting"), RUNNING("Running"), CANCELLING("Cancelling"),
+        DONE("Done"), FAILED("Failed"), CANCELLED("Cancelled");
+
+        private final String label;
+
+        Status(String text) {
+            label = text;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    /**
+     * A booklet to be generated and its progress.
+     */
+    private static class Job {
+        private final PDFBook booklet;
+        private final String source;
+        private final String output;
+        private final File target;      // Absolute path of "output".
+        private final int pages;        // Number of source pages selected.
+        private Status status = Status.WAITING;
+        private PDFBook.ProgressWorker worker;  // Null until started.
+        private int progress;           // Percentage of pages imposed.
+        private long start;             // System.nanoTime() when started.
+        private long elapsed;           // Nanoseconds taken, once finished.
+
+        private Job(PDFBook book, String inPDF, String outPDF) {
+            booklet = book;
+            source = inPDF;
+            output = outPDF;
+            target = new File(outPDF).getAbsoluteFile();
+            pages = book.getLastPage() - book.getFirstPage();
+        }
+
+        /**
+         * @return the time spent generating the booklet in nanoseconds.
+         */
+        private long getElapsed() {
+            if (isActive()) {
+                return System.nanoTime() - start;
+            }
+
+            return elapsed;
+        }
+
+        /**
+         * @return true if the booklet is being generated, even if the job
+         * has been cancelled.
+         */
+        private boolean isActive() {
+            return (status == Status.RUNNING) || (status == Status.CANCELLING);
+        }
+    }
+
+    /**
+     * Creates new JobQueue window.
+     */
+    public JobQueue() {
+        super("PDF Booklet Queue");
+        setDefaultCloseOperation(JFrame.HIDE_ON_CLOSE);
+
+        table.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        table.setFillsViewportHeight(true);
+        table.getColumnModel().getColumn(3).setCellRenderer(
+                new ProgressRenderer());
+        getContentPane().add(new JScrollPane(table), BorderLayout.CENTER);
+
+        JPanel controls = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        controls.add(new JLabel("Workers:"));
+        workersjSpinner.setToolTipText(
+                "Number of booklets to generate at the same time.");
+        workersjSpinner.addChangeListener(new ChangeListener() {
+            @Override
+            public void stateChanged(ChangeEvent evt) {
+                startJobs();
+            }
+        });
+        controls.add(workersjSpinner);
+        controls.add(createButton("Move Up", "Run the selected job sooner.",
+                new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent evt) {
+                moveSelected(-1);
+            }
+        }));
+        controls.add(createButton("Move Down", "Run the selected job later.",
+                new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent evt) {
+                moveSelected(1);
+            }
+        }));
+        controls.add(createButton("Cancel", "Cancel the selected job.",
+                new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent evt) {
+                cancelSelected();
+            }
+        }));
+        controls.add(createButton("Clear Finished",
+                "Remove finished and cancelled jobs from the list.",
+                new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent evt) {
+                clearFinished();
+            }
+        }));
+        getContentPane().add(controls, BorderLayout.SOUTH);
+
+        // Refresh the throughput and elapsed time of running jobs.
+        new Timer(1000, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent evt) {
+                if (running > 0) {
+                    model.fireTableRowsUpdated(0, jobs.size() - 1);
+                }
+            }
+        }).start();
+
+        setSize(760, 300);
+        setLocationByPlatform(true);
+    }
+
+    /**
+     * Create a button for the control panel.
+     *
+     * @param text of the button.
+     * @param tip tool tip of the button.
+     * @param action to perform when the button is clicked.
+     * @return the button.
+     */
+    private static JButton createButton(String text, String tip,
+            ActionListener action) {
+        JButton button = new JButton(text);
+        button.setToolTipText(tip);
+        button.addActionListener(action);
+
+        return button;
+    }
+
+    /**
+     * Add a booklet to the end of the queue and start it if a worker is free.
+     * Must be called on the event dispatch thread.
+     *
+     * @param booklet configured to generate the booklet.
+     * @param source file path of the source PDF.
+     * @param output file path of the generated PDF.
+     */
+    public void add(PDFBook booklet, String source, String output) {
+        jobs.add(new Job(booklet, source, output));
+        model.fireTableRowsInserted(jobs.size() - 1, jobs.size() - 1);
+        startJobs();
+    }
+
+    /**
+     * Start waiting jobs, in queue order, until all workers are busy. A job
+     * is left waiting while another job is generating the same output PDF.
+     */
+    private void startJobs() {
+        final int workers = (Integer) workersjSpinner.getValue();
+        for (Job job : jobs) {
+            if (running >= workers) {
+                break;
+            }
+            if ((job.status == Status.WAITING) && !isWriting(job.target)) {
+                start(job);
+            }
+        }
+    }
+
+    /**
+     * Check if a job is generating an output PDF, even if it has been
+     * cancelled, as it may still be saving.
+     *
+     * @param target absolute path of the output PDF.
+     * @return true if an active job is generating the output PDF.
+     */
+    private boolean isWriting(File target) {
+        for (Job job : jobs) {
+            if (job.isActive() && job.target.equals(target)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Start generating the booklet for a job in the background.
+     *
+     * @param job to start.
+     */
+    private void start(final Job job) {
+        job.status = Status.RUNNING;
+        job.start = System.nanoTime();
+        job.worker = job.booklet.new ProgressWorker();
+        job.worker.addPropertyChangeListener(new PropertyChangeListener() {
+
+            @Override
+            public void propertyChange(PropertyChangeEvent evt) {
+                String name = evt.getPropertyName();
+                // Wait for FINISHED rather than the DONE state, as a cancelled
+                // worker is DONE while it is still generating.
+                if (name.equals("progress")) {
+                    job.progress = (int) evt.getNewValue();
+                    updateRow(job);
+                } else if (name.equals(PDFBook.ProgressWorker.FINISHED)) {
+                    finish(job, (Boolean) evt.getNewValue());
+                }
+            }
+
+        });
+        ++running;
+        updateRow(job);
+        job.worker.execute();
+    }
+
+    /**
+     * Record the outcome of a job and start the next waiting job.
+     *
+     * @param job that has finished.
+     * @param result of generating the booklet, TRUE if it was saved.
+     */
+    private void finish(Job job, Boolean result) {
+        job.elapsed = System.nanoTime() - job.start;
+        if (Boolean.TRUE.equals(result)) {
+            job.status = Status.DONE;
+        } else if (job.worker.isCancelled()) {
+            job.status = Status.CANCELLED;
+        } else {
+            job.status = Status.FAILED;
+        }
+        if (job.status == Status.DONE) {
+            job.progress = 100;
+        }
+
+        --running;
+        updateRow(job);
+        startJobs();
+    }
+
+    /**
+     * Move the selected job up or down the queue.
+     *
+     * @param step -1 to move the job up, 1 to move it down.
+     */
+    private void moveSelected(int step) {
+        final int row = table.getSelectedRow();
+        final int to = row + step;
+        if ((row < 0) || (to < 0) || (to >= jobs.size())) {
+            return;
+        }
+
+        jobs.add(to, jobs.remove(row));
+        model.fireTableRowsUpdated(Math.min(row, to), Math.max(row, to));
+        table.setRowSelectionInterval(to, to);
+    }
+
+    /**
+     * Cancel the selected job if it is waiting or running.
+     */
+    private void cancelSelected() {
+        final int row = table.getSelectedRow();
+        if (row < 0) {
+            return;
+        }
+
+        Job job = jobs.get(row);
+        if (job.status == Status.WAITING) {
+            job.status = Status.CANCELLED;
+            updateRow(job);
+        } else if (job.status == Status.RUNNING) {
+            // Don't interrupt, as that would close any file being written.
+            job.worker.cancel(false);
+            job.status = Status.CANCELLING;
+            updateRow(job);
+        }
+    }
+
+    /**
+     * Remove all jobs that have finished, failed or been cancelled.
+     */
+    private void clearFinished() {
+        for (int row = jobs.size() - 1; row >= 0; --row) {
+            final Job job = jobs.get(row);
+            if ((job.status != Status.WAITING) && !job.isActive()) {
+                jobs.remove(row);
+            }
+        }
+        model.fireTableDataChanged();
+    }
+
+    /**
+     * Redraw the row of a job.
+     *
+     * @param job to redraw.
+     */
+    private void updateRow(Job job) {
+        final int row = jobs.indexOf(job);
+        if (row >= 0) {
+            model.fireTableRowsUpdated(row, row);
+        }
+    }
+
+    /**
+     * Presents the queued jobs as the rows of the table.
+     */
+    private class JobTableModel extends AbstractTableModel {
+
+        private static final long serialVersionUID = 1L;
+        private final String[] columns = { "Source", "Output", "Status",
+            "Progress", "Pages/s", "Elapsed" };
+
+        @Override
+        public int getRowCount() {
+            return jobs.size();
+        }
+
+        @Override
+        public int getColumnCount() {
+            return columns.length;
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return columns[column];
+        }
+
+        @Override
+        public Object getValueAt(int row, int column) {
+            Job job = jobs.get(row);
+            final double seconds = job.getElapsed() / 1e9;
+
+            switch (column) {
+                case 0:     return new File(job.source).getName();
+                case 1:     return new File(job.output).getName();
+                case 2:     return job.status;
+                case 3:     return job.progress;
+                case 4:
+                    if ((job.worker == null) || (seconds <= 0)) {
+                        return "";
+                    }
+                    return String.format(Locale.US, "%.1f",
+                            job.pages * job.progress / 100 / seconds);
+                case 5:
+                    if (job.worker == null) {
+                        return "";
+                    }
+                    final long s = (long) seconds;
+                    return String.format("%d:%02d", s / 60, s % 60);
+            }
+
+            return null;
+        }
+    }
+
+    /**
+     * Draws the progress of a job as a progress bar.
+     */
+    private static class ProgressRenderer extends JProgressBar
+            implements TableCellRenderer {
+
+        private static final long serialVersionUID = 1L;
+
+        private ProgressRenderer() {
+            super(0, 100);
+            setStringPainted(true);
+        }
+
+        @Override
+        public Component getTableCellRendererComponent(JTable table,
+                Object value, boolean isSelected, boolean hasFocus, int row,
+                int column) {
+            setValue((Integer) value);
+
+            return this;
+        }
+    }
+
+}
@@ -0,0 +1,513 @@
+/*  PDFBook - a simple application to generate a booklet from of a PDF.
+ *
+ *  Copyright 2020 Philip Lockett.
+ *
+ *  This file is part of PDFBook.
+ *
+ *  PDFBook is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  PDFBook is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with PDFBook.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+ /*
+ * OutputCompactor makes the generated PDF documents smaller without changing
+ * how they look, just before they are saved.
+ *
+ * First, entries of resource dictionaries that are not named by any content
+ * stream using them are removed. Imported pages carry every resource of the
+ * source page, including those only used by other pages. A resource dictionary
+ * may be shared, so an entry is only removed if no content stream using the
+ * dictionary names it, and dictionaries also used by something that is not
+ * scanned, such as an inherited page resource, are left untouched. Objects
+ * that are no longer referenced are then left out when the document is saved.
+ *
+ * Second, every stream that has no filter, such as the content streams of the
+ * generated pages, is compressed with Flate. The streams are read and written
+ * on the calling thread, as a PDDocument cannot create streams on several
+ * threads at once, but the compression itself is performed in parallel. A
+ * stream is only replaced if compressing it makes it smaller.
+ *
+ * All the documents are processed together, as the generated PDFs of a job
+ * share the imported pages.
+ */
+package com.phillockett65;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+import org.apache.pdfbox.contentstream.operator.Operator;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.pdfparser.PDFStreamParser;
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+/**
+ *
+ * @author Phil
+ */
+class OutputCompactor {
+
+    // Resource categories that content streams refer to by name.
+    private static final COSName[] CATEGORIES = {
+        COSName.XOBJECT, COSName.FONT, COSName.EXT_G_STATE,
+        COSName.COLORSPACE, COSName.PATTERN, COSName.SHADING,
+        COSName.PROPERTIES
+    };
+
+    private static final COSName CHAR_PROCS = COSName.getPDFName("CharProcs");
+
+    private final int threads;          // Streams to compress in parallel.
+    private final List<COSDictionary> roots = new ArrayList<>();
+
+    // Names used from each resource category dictionary.
+    private final Map<COSDictionary, Set<COSName>> used =
+            new IdentityHashMap<>();
+    // Resource category dictionaries that must be left untouched.
+    private final Set<COSDictionary> keep = Collections.newSetFromMap(
+            new IdentityHashMap<COSDictionary, Boolean>());
+
+
+    /**
+     * A content stream, or the streams of a page, and the resources it uses.
+     */
+    private static class Content {
+        private final List<COSStream> streams;
+        private final COSDictionary resources;
+
+        private Content(List<COSStream> list, COSDictionary dict) {
+            streams = list;
+            resources = dict;
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param count number of streams to compress in parallel.
+     */
+    public OutputCompactor(int count) {
+        threads = count;
+    }
+
+    /**
+     * Add a document to be compacted.
+     *
+     * @param doc generated PDF document that is about to be saved.
+     */
+    public void addDocument(PDDocument doc) {
+        roots.add(doc.getDocument().getTrailer());
+    }
+
+    /**
+     * Remove unused resources from, then compress the uncompressed streams
+     * of, all added documents.
+     *
+     * @return the number of bytes saved by compressing streams.
+     * @throws IOException if a stream could not be read or written.
+     */
+    public long process() throws IOException {
+        prune();
+
+        return compress();
+    }
+
+    /**
+     * Remove the entries of resource dictionaries that are not used.
+     *
+     * @return the number of entries removed.
+     */
+    private int prune() {
+        List<Content> contents = new ArrayList<>();
+        for (COSDictionary dict : getDictionaries()) {
+            COSBase base = dict.getDictionaryObject(COSName.RESOURCES);
+            if (!(base instanceof COSDictionary)) {
+                continue;
+            }
+
+            COSDictionary resources = (COSDictionary) base;
+            if (dict instanceof COSStream) {
+                contents.add(new Content(
+                        Collections.singletonList((COSStream) dict),
+                        resources));
+            } else if (dict.containsKey(COSName.CONTENTS)) {
+                contents.add(new Content(getStreams(
+                        dict.getDictionaryObject(COSName.CONTENTS)),
+                        resources));
+            } else if (dict.containsKey(CHAR_PROCS)) {
+                contents.add(new Content(getStreams(
+                        dict.getDictionaryObject(CHAR_PROCS)), resources));
+            } else {
+                // For example, resources inherited by pages from the page tree.
+                keepAll(resources);
+            }
+        }
+
+        for (Content content : contents) {
+            scan(content);
+        }
+
+        int removed = 0;
+        for (Map.Entry<COSDictionary, Set<COSName>> entry : used.entrySet()) {
+            COSDictionary category = entry.getKey();
+            if (keep.contains(category)) {
+                continue;
+            }
+
+            for (COSName name : new ArrayList<>(category.keySet())) {
+                // Default colour spaces are used without being named.
+                if (!entry.getValue().contains(name)
+                        && !name.getName().startsWith("Default")) {
+                    category.removeItem(name);
+                    ++removed;
+                }
+            }
+        }
+
+        return removed;
+    }
+
+    /**
+     * Compress every stream that has no filter with Flate.
+     *
+     * @return the number of bytes saved.
+     * @throws IOException if a stream could not be read or written.
+     */
+    private long compress() throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        Deque<COSStream> streams = new ArrayDeque<>();
+        Deque<Future<byte[]>> results = new ArrayDeque<>();
+        long saved = 0;
+
+        try {
+            for (COSDictionary dict : getDictionaries()) {
+                if (!(dict instanceof COSStream) || isCompressed(dict)) {
+                    continue;
+                }
+
+                COSStream stream = (COSStream) dict;
+                final byte[] data = read(stream);
+                streams.add(stream);
+                results.add(pool.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        return deflate(data);
+                    }
+                }));
+
+                // Limit the number of streams held in memory.
+                if (results.size() > 2 * threads) {
+                    saved += replace(streams.poll(), results.poll().get());
+                }
+            }
+
+            while (!results.isEmpty()) {
+                saved += replace(streams.poll(), results.poll().get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted compressing streams", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed compressing stream", e);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        return saved;
+    }
+
+    /**
+     * Get every dictionary, including streams, reachable from the added
+     * documents. Each dictionary is only returned once.
+     *
+     * @return the dictionaries found.
+     */
+    private List<COSDictionary> getDictionaries() {
+        List<COSDictionary> found = new ArrayList<>();
+        Set<COSBase> seen = Collections.newSetFromMap(
+                new IdentityHashMap<COSBase, Boolean>());
+        Deque<COSBase> pending = new ArrayDeque<COSBase>(roots);
+
+        // Use a stack rather than recursion, as chains of objects, such as
+        // outline items, can be very long.
+        while (!pending.isEmpty()) {
+            COSBase base = pending.pop();
+            if (base instanceof COSObject) {
+                base = ((COSObject) base).getObject();
+            }
+            if ((base == null) || !seen.add(base)) {
+                continue;
+            }
+
+            if (base instanceof COSDictionary) {
+                COSDictionary dict = (COSDictionary) base;
+                found.add(dict);
+                for (COSBase item : dict.getValues()) {
+                    pending.push(item);
+                }
+            } else if (base instanceof COSArray) {
+                for (COSBase item : (COSArray) base) {
+                    pending.push(item);
+                }
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * Get the streams held by an object, which may be a stream, an array of
+     * streams or a dictionary of streams.
+     *
+     * @param base object holding the streams.
+     * @return the streams, in order.
+     */
+    private static List<COSStream> getStreams(COSBase base) {
+        List<COSStream> streams = new ArrayList<>();
+        Iterable<COSBase> items = Collections.emptyList();
+        if (base instanceof COSStream) {
+            items = Collections.singletonList(base);
+        } else if (base instanceof COSArray) {
+            items = (COSArray) base;
+        } else if (base instanceof COSDictionary) {
+            items = ((COSDictionary) base).getValues();
+        }
+
+        for (COSBase item : items) {
+            if (item instanceof COSObject) {
+                item = ((COSObject) item).getObject();
+            }
+            if (item instanceof COSStream) {
+                streams.add((COSStream) item);
+            }
+        }
+
+        return streams;
+    }
+
+    /**
+     * Record the resources named by a content stream. If the stream cannot
+     * be parsed, all of its resources are kept.
+     *
+     * @param content to scan.
+     */
+    private void scan(Content content) {
+        for (COSName category : CATEGORIES) {
+            COSDictionary dict = content.resources.getCOSDictionary(category);
+            if ((dict != null) && !used.containsKey(dict)) {
+                used.put(dict, new HashSet<COSName>());
+            }
+        }
+
+        try {
+            for (COSStream stream : content.streams) {
+                PDFStreamParser parser = new PDFStreamParser(read(stream));
+                Object token;
+                while ((token = parser.parseNextToken()) != null) {
+                    if (token instanceof Operator) {
+                        addNames(((Operator) token).getImageParameters(),
+                                content.resources);
+                    } else if (token instanceof COSBase) {
+                        addNames((COSBase) token, content.resources);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            keepAll(content.resources);
+        }
+    }
+
+    /**
+     * Record the resources named by a content stream operand.
+     *
+     * @param operand that may be, or may contain, resource names.
+     * @param resources used by the content stream.
+     */
+    private void addNames(COSBase operand, COSDictionary resources) {
+        if (operand instanceof COSName) {
+            addName((COSName) operand, resources);
+        } else if (operand instanceof COSArray) {
+            for (COSBase item : (COSArray) operand) {
+                addNames(item, resources);
+            }
+        } else if (operand instanceof COSDictionary) {
+            for (COSBase item : ((COSDictionary) operand).getValues()) {
+                addNames(item, resources);
+            }
+        }
+    }
+
+    /**
+     * Record a resource name as used, in whichever categories define it.
+     *
+     * @param name used by a content stream.
+     * @param resources used by the content stream.
+     */
+    private void addName(COSName name, COSDictionary resources) {
+        for (COSName category : CATEGORIES) {
+            COSDictionary dict = resources.getCOSDictionary(category);
+            if ((dict == null) || !dict.containsKey(name)) {
+                continue;
+            }
+
+            used.get(dict).add(name);
+
+            // Forms, patterns and Type 3 fonts without resources of their own
+            // use those of the content stream that draws them.
+            COSBase value = dict.getDictionaryObject(name);
+            if (isContent(value) && !((COSDictionary) value)
+                    .containsKey(COSName.RESOURCES)) {
+                keepAll(resources);
+            }
+        }
+    }
+
+    /**
+     * Check whether a resource holds content streams that may use resources:
+     * a form, a tiling pattern or a Type 3 font.
+     *
+     * @param value of the resource.
+     * @return true if the resource holds content streams.
+     */
+    private static boolean isContent(COSBase value) {
+        if (value instanceof COSStream) {
+            COSStream stream = (COSStream) value;
+
+            return COSName.FORM.equals(stream.getCOSName(COSName.SUBTYPE))
+                    || stream.containsKey(COSName.PATTERN_TYPE);
+        }
+
+        return (value instanceof COSDictionary)
+                && ((COSDictionary) value).containsKey(CHAR_PROCS);
+    }
+
+    /**
+     * Prevent any entry of a resource dictionary from being removed.
+     *
+     * @param resources to keep.
+     */
+    private void keepAll(COSDictionary resources) {
+        for (COSName category : CATEGORIES) {
+            COSDictionary dict = resources.getCOSDictionary(category);
+            if (dict != null) {
+                keep.add(dict);
+            }
+        }
+    }
+
+    /**
+     * Check whether a stream should be left as it is, either because it is
+     * already compressed or because it should remain readable.
+     *
+     * @param stream to check.
+     * @return true if the stream should not be compressed.
+     */
+    private static boolean isCompressed(COSDictionary stream) {
+        final COSName type = stream.getCOSName(COSName.TYPE);
+
+        return stream.containsKey(COSName.FILTER)
+                || COSName.METADATA.equals(type)
+                || COSName.XREF.equals(type);
+    }
+
+    /**
+     * Read the decoded data of a stream.
+     *
+     * @param stream to read.
+     * @return the data.
+     * @throws IOException if the stream could not be read.
+     */
+    private static byte[] read(COSStream stream) throws IOException {
+        InputStream in = stream.createInputStream();
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Compress data with Flate.
+     *
+     * @param data to compress.
+     * @return the compressed data.
+     */
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(
+                    data.length / 2 + 64);
+            byte[] buffer = new byte[64 * 1024];
+            while (!deflater.finished()) {
+                final int count = deflater.deflate(buffer);
+                out.write(buffer, 0, count);
+            }
+
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Replace the data of an uncompressed stream with its compressed form, if
+     * that is smaller.
+     *
+     * @param stream to replace the data of.
+     * @param compressed data of the stream.
+     * @return the number of bytes saved.
+     * @throws IOException if the stream could not be written.
+     */
+    private static long replace(COSStream stream, byte[] compressed)
+            throws IOException {
+        final long length = stream.getLength();
+        if (compressed.length >= length) {
+            return 0;
+        }
+
+        OutputStream out = stream.createRawOutputStream();
+        try {
+            out.write(compressed);
+        } finally {
+            out.close();
+        }
+        stream.setItem(COSName.FILTER, COSName.FLATE_DECODE);
+        stream.removeItem(COSName.DECODE_PARMS);
+
+        return length - compressed.length;
+    }
+
+}
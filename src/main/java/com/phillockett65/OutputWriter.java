@@ -0,0 +1,229 @@
+/*  PDFBook - a simple application to generate a booklet from of a PDF.
+ *
+ *  Copyright 2020 Philip Lockett.
+ *
+ *  This file is part of PDFBook.
+ *
+ *  PDFBook is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  PDFBook is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with PDFBook.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+ /*
+ * OutputWriter saves a PDF document so that the output file only ever appears
+ * complete. The document is written through a large direct buffer to a
+ * FileChannel on a temporary file in the same directory as the output, which
+ * is renamed over the output in one step. If sync is set, the file is forced
+ * to disk before it is renamed and the directory is forced to disk after, so
+ * the rename also survives a crash. If the save fails, the temporary file is
+ * removed and any existing output is left untouched.
+ *
+ * Writing in large blocks avoids the many small writes made by PDFBox's
+ * default 8 KB buffer, which are slow on network file systems.
+ */
+package com.phillockett65;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+/**
+ *
+ * @author Phil
+ */
+class OutputWriter {
+
+    private final int bufferSize;       // Size of each block written.
+    private final boolean sync;         // Force to disk before renaming?
+
+
+    /**
+     * Constructor.
+     *
+     * @param size of the write buffer in bytes.
+     * @param force true if the file should be forced to disk before it is
+     * renamed, false otherwise.
+     */
+    public OutputWriter(int size, boolean force) {
+        bufferSize = size;
+        sync = force;
+    }
+
+    /**
+     * Save a PDF document to a file, replacing it in one step once complete.
+     *
+     * @param doc to save.
+     * @param output file to save the document to.
+     * @return the number of bytes written.
+     * @throws IOException if the document could not be saved.
+     */
+    public long save(PDDocument doc, File output) throws IOException {
+        // Unlike Files.createTempFile(), this creates the file with the usual
+        // permissions, which the output then keeps.
+        final File file = output.getAbsoluteFile();
+        final Path target = file.toPath();
+        final Path temp = File.createTempFile(file.getName() + ".", ".tmp",
+                file.getParentFile()).toPath();
+        long bytes;
+
+        try {
+            try (FileChannel channel = FileChannel.open(temp,
+                    StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                // The document closes the stream once it has been saved.
+                doc.save(new ChannelOutputStream(channel));
+                if (sync) {
+                    channel.force(true);
+                }
+                bytes = channel.size();
+            }
+
+            move(temp, target, false);
+            if (sync) {
+                syncDirectory(target.getParent());
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+
+            throw e;
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Rename a file over another in one step, if the file system allows it.
+     *
+     * @param source file to rename.
+     * @param target file to replace.
+     * @param force true if the file should be forced to disk before it is
+     * renamed and the directory after, false otherwise.
+     * @throws IOException if the file could not be renamed.
+     */
+    public static void move(Path source, Path target, boolean force)
+            throws IOException {
+        if (force) {
+            try (FileChannel channel = FileChannel.open(source,
+                    StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+        }
+
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        if (force) {
+            syncDirectory(target.toAbsolutePath().getParent());
+        }
+    }
+
+    /**
+     * Force a directory to disk, so that files renamed into it stay renamed
+     * after a crash.
+     *
+     * @param dir directory to force to disk.
+     * @throws IOException if the directory could not be forced to disk.
+     */
+    private static void syncDirectory(Path dir) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(dir, StandardOpenOption.READ);
+        } catch (IOException e) {
+            // Directories can't be opened on Windows, where NTFS journals
+            // the rename instead.
+            return;
+        }
+
+        try (FileChannel directory = channel) {
+            directory.force(true);
+        }
+    }
+
+    /**
+     * An OutputStream that collects bytes in a direct buffer and writes them
+     * to a FileChannel a whole buffer at a time. Closing the stream writes any
+     * remaining bytes but leaves the channel open.
+     */
+    private class ChannelOutputStream extends OutputStream {
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+
+        /**
+         * Constructor.
+         *
+         * @param file channel to write to.
+         */
+        private ChannelOutputStream(FileChannel file) {
+            channel = file;
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (!buffer.hasRemaining()) {
+                    drain();
+                }
+
+                final int count = Math.min(len, buffer.remaining());
+                buffer.put(b, off, count);
+                off += count;
+                len -= count;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            drain();
+        }
+
+        @Override
+        public void close() throws IOException {
+            drain();
+        }
+
+        /**
+         * Write the contents of the buffer to the channel.
+         *
+         * @throws IOException if the channel could not be written.
+         */
+        private void drain() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+}
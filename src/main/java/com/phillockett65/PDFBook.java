@@ -40,30 +40,30 @@
  *      how-to-set-up-pagination-section-sewn-bindings
  *
  * The document is processed in groups of 4 pages for each sheet of paper, where
- * each page is captured as a BufferedImage. The 4th page is rotated anti-
- * clockwise and scaled to fit on the bottom half of one side of the sheet. The
- * 1st page is rotated anti-clockwise and scaled to fit on the top half of the
- * same side of the sheet. On the reverse side, the 2nd page is rotated
- * clockwise and scaled to fit on the top half and the 3rd page is rotated
- * clockwise and scaled to fit on the bottom half. This process is repeated for
- * all groups of 4 pages in the source document.
+ * each page is imported as a form XObject, or optionally captured as a
+ * BufferedImage if it is too complex to be imported efficiently. The 4th page
+ * is rotated anti-clockwise and scaled to fit on the bottom half of one side of
+ * the sheet. The 1st page is rotated anti-clockwise and scaled to fit on the top
+ * half of the same side of the sheet. On the reverse side, the 2nd page is
+ * rotated clockwise and scaled to fit on the top half and the 3rd page is
+ * rotated clockwise and scaled to fit on the bottom half. This process is
+ * repeated for all groups of 4 pages in the source document. Identical source
+ * pages, such as blank pages, are imported once and shared by every sheet that
+ * uses them.
+ *
+ * PDFBook collects the settings of a booklet, then builds a BookletJob from
+ * them and has it generated by a BookletEngine shared by all PDFBook objects.
  */
 package com.phillockett65;
 
-import java.awt.geom.AffineTransform;
 import java.io.File;
 import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import javax.swing.SwingWorker;
 
-import org.apache.pdfbox.cos.COSDictionary;
-import org.apache.pdfbox.cos.COSName;
-import org.apache.pdfbox.multipdf.LayerUtility;
 import org.apache.pdfbox.pdmodel.PDDocument;
-import org.apache.pdfbox.pdmodel.PDPage;
-import org.apache.pdfbox.pdmodel.PDPageContentStream;
 import org.apache.pdfbox.pdmodel.common.PDRectangle;
-import org.apache.pdfbox.pdmodel.graphics.form.PDFormXObject;
-import org.apache.pdfbox.util.Matrix;
 
 /**
  *
@@ -76,15 +76,23 @@ public class PDFBook {
     private int firstPage = 0;
     private int lastPage = 0;
     private boolean rotate = true;      // Required?
+    private int rasterThreshold = -1;   // Raster pages with this many XObjects.
+    private float rasterDPI = 300;
+    private float imageDPI = 0;         // Downsample images above, 0 = off.
+    private boolean linearize = false;  // Generate fast web view PDF?
+    private boolean incremental = false;    // Only rebuild changed sections?
+    private int writeBuffer = 0;        // Buffered atomic save, 0 = off.
+    private boolean sync = false;       // Force the output to disk?
+    private boolean compact = false;    // Prune and compress before saving?
+    private final Map<String, PDRectangle> extras =
+            new LinkedHashMap<>();      // Other outputs, keyed by filepath.
 
     private final String sourcePDF;     // The source PDF filepath.
     private final String outputPDF;     // The generated PDF filepath.
     private int maxPage = 0;
 
-    private PDDocument inputDoc;        // The source PDF document.
-    private PDDocument outputDoc;       // The generated PDF document.
-    private PDPage page;                // Current page of "outputDoc".
-
+    // Generates the booklets of every PDFBook, as it is thread safe.
+    private static final BookletEngine ENGINE = new BookletEngine();
 
 
     /**
@@ -98,7 +106,7 @@ public class PDFBook {
         outputPDF = outPDF;
 
         try {
-            inputDoc = PDDocument.load(new File(sourcePDF));
+            PDDocument inputDoc = PDDocument.load(new File(sourcePDF));
             maxPage = inputDoc.getNumberOfPages();
             lastPage = maxPage;
 
@@ -111,7 +119,45 @@ public class PDFBook {
         }
     }
 
-    private static PDRectangle getPS(String size) {
+    /**
+     * Constructor for a source PDF whose page count is already known, which
+     * avoids loading the document until the booklet is generated.
+     *
+     * @param inPDF file path for source PDF.
+     * @param outPDF file path for generated PDF.
+     * @param pageCount number of pages in the source PDF.
+     */
+    public PDFBook(String inPDF, String outPDF, int pageCount) {
+        sourcePDF = inPDF;
+        outputPDF = outPDF;
+        maxPage = pageCount;
+        lastPage = maxPage;
+    }
+
+    /**
+     * Convert the name of a standard page size to the corresponding 
+     * PDRectangle value.
+     * 
+     * @param size name of the page size, such as "A4" or "Letter".
+     * @return the corresponding PDRectangle value, Letter if not recognised.
+     */
+    static PDRectangle getPS(String size) {
+        PDRectangle rectangle = findPS(size);
+        if (rectangle == null) {
+            return PDRectangle.LETTER;
+        }
+
+        return rectangle;
+    }
+
+    /**
+     * Convert the name of a standard page size to the corresponding 
+     * PDRectangle value.
+     * 
+     * @param size name of the page size, such as "A4" or "Letter".
+     * @return the corresponding PDRectangle value, null if not recognised.
+     */
+    static PDRectangle findPS(String size) {
         switch (size) {
             case "A0":      return PDRectangle.A0;
             case "A1":      return PDRectangle.A1;
@@ -124,8 +170,9 @@ public class PDFBook {
             case "Letter":  return PDRectangle.LETTER;
         }
 
-        return PDRectangle.LETTER;
+        return null;
     }
+
     /**
      * System entry point for stand alone, command line version.
      *
@@ -137,6 +184,9 @@ public class PDFBook {
             if (args.length > 2) {
                 booklet.setPageSize(getPS(args[2]));
             }
+            for (int i = 4; i < args.length; i += 2) {
+                booklet.addTarget(getPS(args[i - 1]), args[i]);
+            }
 
             booklet.genBooklet();
         }
@@ -242,290 +292,222 @@ public class PDFBook {
     }
 
     /**
-     * Based on the SwingWorker example by "MadProgrammer" here:
-     * https://stackoverflow.com/questions/18835835/jprogressbar-not-updating
+     * Set the complexity threshold at which a source page is rendered as an
+     * image instead of being imported as a form XObject. Complexity is the
+     * number of XObjects drawn by the page, including nested XObjects.
+     * 
+     * @param threshold XObject count at which pages are rendered, 0 to render
+     * every page or a negative value to never render pages (the default).
      */
-    public class ProgressWorker extends SwingWorker<Object, Object> {
-
-        @Override
-        protected Object doInBackground() throws Exception {
-
-            try {
-                inputDoc = PDDocument.load(new File(sourcePDF));
-
-                try {
-                    outputDoc = new PDDocument();
-                    final int MAX = lastPage;
-                    final int COUNT = lastPage - firstPage;
-                    int last = firstPage;
-                    for (int first = last; first < MAX; first = last) {
-                        last += 4 * sheetCount;
-                        if (last > MAX) {
-                            last = MAX;
-                        }
-
-                        addPDPagesToPdf(first, last);
-                        setProgress(100 * (last - firstPage) / COUNT);
-                    }
-                    outputDoc.save(outputPDF);
-                    if (outputDoc != null) {
-                        outputDoc.close();
-                    }
-                } catch (IOException e) {
-                    System.out.println(e.getMessage());
-                }
-
-                if (inputDoc != null) {
-                    inputDoc.close();
-                }
-
-            } catch (IOException e) {
-                System.out.println(e.getMessage());
-            }
-
-            return null;
-        }
+    public void setRasterThreshold(int threshold) {
+        rasterThreshold = threshold;
     }
 
     /**
-     * Generate a booklet style PDF.
+     * Set the resolution used when a source page is rendered as an image.
+     * 
+     * @param dpi resolution of rendered pages in dots per inch.
      */
-    public void genBooklet() {
-        try {
-            inputDoc = PDDocument.load(new File(sourcePDF));
+    public void setRasterDPI(float dpi) {
+        rasterDPI = dpi;
+    }
 
-            try {
-                outputDoc = new PDDocument();
-                final int MAX = lastPage;
-                int last = firstPage;
-                for (int first = last; first < MAX; first = last) {
-                    last += 4 * sheetCount;
-                    if (last > MAX) {
-                        last = MAX;
-                    }
-
-                    addPDPagesToPdf(first, last);
-
-                    System.out.printf("Pages %d to %d\n", first + 1, last);
-                }
-                outputDoc.save(outputPDF);
-                if (outputDoc != null) {
-                    outputDoc.close();
-                }
-            } catch (IOException e) {
-                System.out.println(e.getMessage());
-            }
+    /**
+     * Set the maximum effective resolution of images in the generated PDF. 
+     * Images that exceed it once the pages have been scaled to fit on the
+     * sheet are downsampled and re-encoded before the PDF is saved.
+     * 
+     * @param dpi target resolution in dots per inch, 0 to leave images 
+     * untouched (the default).
+     */
+    public void setImageDPI(float dpi) {
+        imageDPI = dpi;
+    }
 
-            if (inputDoc != null) {
-                inputDoc.close();
-            }
+    /**
+     * Indicate whether the generated PDF should be linearized (fast web view),
+     * so that viewers and print queues can start on the first sheet before 
+     * the whole file has arrived.
+     * 
+     * PDFBox cannot write linearized files, so the saved PDF is linearized by
+     * qpdf (https://qpdf.sourceforge.io/), which must be on the PATH or given 
+     * by the "pdfbook.qpdf" system property. If qpdf is unavailable, fails or
+     * runs for longer than the "pdfbook.qpdf.timeout" system property (in 
+     * seconds, 600 by default), the job fails and the output is not written.
+     * 
+     * @param fast true if the generated PDF should be linearized, false 
+     * otherwise (the default).
+     */
+    public void setLinearize(boolean fast) {
+        linearize = fast;
+    }
 
-            System.out.println("File created in: " + outputPDF);
-        } catch (IOException e) {
-            System.out.println(e.getMessage());
-        }
+    /**
+     * Indicate whether only the sections affected by changes to the source PDF
+     * should be rebuilt. The fingerprint of each section is kept in a sidecar
+     * file next to the generated PDF ("outputPDF.sections"). If the previous
+     * booklet was generated with the same settings, the sections whose
+     * fingerprints are unchanged are kept from it and only the others are 
+     * imposed again. Fonts, images and layers that the rebuilt sections share
+     * with the rest of the booklet are saved only once.
+     * 
+     * @param changes true to only rebuild changed sections, false to always
+     * rebuild the whole booklet (the default).
+     */
+    public void setIncremental(boolean changes) {
+        incremental = changes;
     }
 
     /**
-     * Add a section of pages to the PDF document.
-     *
-     * @param fpn first page number to grab from inputDoc (pages start from 0).
-     * @param lpn page number for grabbing pages BEFORE reaching the last page.
+     * Set the size of the buffer used to save the generated PDF. With a buffer
+     * the PDF is written in large blocks to a temporary file in the same 
+     * directory, which is renamed over the output once it is complete, so a
+     * failed run never leaves a truncated PDF behind. The number of bytes
+     * written and the write throughput are reported.
+     * 
+     * @param size of the write buffer in bytes, 0 to save the PDF directly 
+     * (the default).
      */
-    private void addPDPagesToPdf(int fpn, int lpn) {
+    public void setWriteBuffer(int size) {
+        writeBuffer = size;
+    }
 
-        // Create an array of page numbers from a PDF document.
-        int i = 0;
-        int[] pages = new int[lpn-fpn];
-        for (int target = fpn; target < lpn; ++target) {
-            pages[i++] = target;
-        }
+    /**
+     * Indicate whether the generated PDF should be forced to disk before it is
+     * renamed over the output, and its directory after, so the rename is not
+     * lost in a crash. Used when a write buffer has been set, or when the PDF
+     * is linearized or updated incrementally.
+     * 
+     * @param force true if the PDF should be forced to disk, false otherwise
+     * (the default).
+     */
+    public void setSync(boolean force) {
+        sync = force;
+    }
 
-        // Add pages in pairs to both side of the sheet.
-        final int LAST = 4 * sheetCount;
-        int first = 0;
-        int last = LAST - 1;
-        for (int sheet = 0; sheet < sheetCount; ++sheet) {
-            addPDPagesToPage(pages, first++, last--, false);
-            addPDPagesToPage(pages, last--, first++, rotate);
-        }
+    /**
+     * Indicate whether the generated PDF should be compacted before it is
+     * saved. Resources of the imported pages that are never drawn are removed
+     * and streams that were written uncompressed, such as the content of each
+     * sheet side, are compressed with Flate in parallel. The booklet looks
+     * exactly the same, but is smaller to transfer and spool.
+     * 
+     * @param smaller true if the generated PDF should be compacted, false
+     * otherwise (the default).
+     */
+    public void setCompact(boolean smaller) {
+        compact = smaller;
     }
 
     /**
-     * Add two pages, scale and rotate to fit on portrait 'pageSize' page.
-     *
-     * @param pages array to be added to document in booklet arrangement.
-     * @param right index into pages for the right page.
-     * @param left index into pages for the left page.
-     * @param flip flag to indicate if the images should be rotated clockwise.
+     * Add another page size to generate the booklet on, such as A4 as well as
+     * Letter. The source pages are loaded and imported once and then imposed
+     * on every page size, which is much quicker than generating each booklet
+     * separately. Incremental mode is only used when no other page sizes have
+     * been added.
+     * 
+     * @param size of standard portrait page defined by PDRectangle.
+     * @param outPDF file path for the PDF generated on this page size.
      */
-    private void addPDPagesToPage(int[] pages, int right, int left,
-            boolean flip) {
+    public void addTarget(PDRectangle size, String outPDF) {
+        extras.put(outPDF, size);
+    }
 
-        if (add2PagesToPage(pages, right, left)) {
-            try {
-                PDPage imported = outputDoc.importPage(page);
-                addPageToPdf(imported, flip);
-            } catch (IOException e) {
-            }
+    /**
+     * Create the job for the current settings, which can be given to a
+     * BookletEngine.
+     * 
+     * @return the job.
+     * @throws IllegalArgumentException if a setting is invalid.
+     */
+    public BookletJob getJob() {
+        BookletJob.Builder builder = new BookletJob.Builder(sourcePDF,
+                outputPDF)
+                .setPageSize(pageSize)
+                .setSheetCount(sheetCount)
+                .setPageRange(firstPage, lastPage)
+                .setRotate(rotate)
+                .setRasterThreshold(rasterThreshold)
+                .setRasterDPI(rasterDPI)
+                .setImageDPI(imageDPI)
+                .setLinearize(linearize)
+                .setIncremental(incremental)
+                .setWriteBuffer(writeBuffer)
+                .setSync(sync)
+                .setCompact(compact);
+        for (Map.Entry<String, PDRectangle> extra : extras.entrySet()) {
+            builder.addTarget(extra.getValue(), extra.getKey());
         }
 
+        return builder.build();
     }
 
     /**
-     * Add two pages, side by side, to a single page of a PDF document.
-     *
-     * @param pages array to be added to document in booklet arrangement.
-     * @param right index into pages for the right page.
-     * @param left index into pages for the left page.
+     * Based on the SwingWorker example by "MadProgrammer" here:
+     * https://stackoverflow.com/questions/18835835/jprogressbar-not-updating
+     * 
+     * The result is Boolean.TRUE if the generated PDF was saved. If the worker
+     * is cancelled, generation stops after the current section, or before the
+     * next step after imposing, and nothing is saved. Once saving has started
+     * the generated PDFs are always saved.
+     * 
+     * A cancelled worker's "state" becomes DONE straight away, while it is
+     * still generating, so the FINISHED property is fired once generation has
+     * actually stopped, with the result as its new value (null if generation
+     * failed with an exception).
      */
-    private boolean add2PagesToPage(int[] pages, int right, int left) {
-
-        final int count = pages.length;
-        boolean lpa = false;
-        boolean rpa = false;
-        int lpn = 0;
-        int rpn = 0;
-        if (count > left) {
-            lpa = true;
-            lpn = pages[left];
-        }
-        if (count > right) {
-            rpa = true;
-            rpn = pages[right];
-        }
-        if ((lpa == false) && (rpa == false))
-            return false;
+    public class ProgressWorker extends SwingWorker<Object, Object>
+            implements BookletEngine.Progress {
 
-        try {
-            // Create output PDF frame.
-            PDRectangle lFrame = inputDoc.getPage(lpn).getCropBox();
-            PDRectangle rFrame = inputDoc.getPage(rpn).getCropBox();
-
-            final float lw = lFrame.getWidth();
-            final float lh = lFrame.getHeight();
-            final float rw = rFrame.getWidth();
-            final float rh = rFrame.getHeight();
-
-            // Vertically centre the shorter of the two pages.
-            float h = lh;
-            float lty = 0.0f;
-            float rty = 0.0f;
-
-            if (rh > lh) {
-                h = rh;
-                lty = (rh - lh) / 2;
-            }
-            else {
-                rty = (lh - rh) / 2;
-            }
-            PDRectangle outPdfFrame = new PDRectangle(lw + rw, h);
-
-            final int idx = outputDoc.getNumberOfPages();
-
-            // Create page with calculated frame and add it to the document.
-            COSDictionary dict = new COSDictionary();
-            dict.setItem(COSName.TYPE, COSName.PAGE);
-            dict.setItem(COSName.MEDIA_BOX, outPdfFrame);
-            dict.setItem(COSName.CROP_BOX, outPdfFrame);
-            dict.setItem(COSName.ART_BOX, outPdfFrame);
-            page = new PDPage(dict);
-
-            // Source PDF pages has to be imported as form XObjects to be able
-            // to insert them at a specific point in the output page.
-            LayerUtility layer = new LayerUtility(outputDoc);
-            PDFormXObject lForm = layer.importPageAsForm(inputDoc, lpn);
-            PDFormXObject rForm = layer.importPageAsForm(inputDoc, rpn);
-
-            // Add form objects to output page.
-            if (lpa) {
-                AffineTransform af = AffineTransform.getTranslateInstance(
-                        0.0, lty);
-                layer.appendFormAsLayer(page, lForm, af, "left" + idx);
-            }
-            if (rpa) {
-                AffineTransform af = AffineTransform.getTranslateInstance(
-                        lw, rty);
-                layer.appendFormAsLayer(page, rForm, af, "right" + idx);
-            }
+        public static final String FINISHED = "finished";
 
-            return true;
+        @Override
+        protected Object doInBackground() throws Exception {
+            Boolean result = null;
+            try {
+                result = ENGINE.generate(getJob(), this);
 
-        } catch (IOException e) {
+                return result;
+            } finally {
+                firePropertyChange(FINISHED, null, result);
+            }
         }
 
-        return false;
+        /**
+         * Update the progress of the worker after a section has been added.
+         *
+         * @param percent of the selected pages added so far (0 to 100).
+         */
+        @Override
+        public void update(int percent) {
+            setProgress(percent);
+        }
     }
 
     /**
-     * Scale and rotate a landscape page to fit on portrait 'pageSize' page.
-     *
-     * @param copyPage to add to document (in landscape orientation).
-     * @param flip flag to indicate if the images should be rotated clockwise.
+     * Generate a booklet style PDF.
      */
-    private void addPageToPdf(PDPage copyPage, boolean flip) {
-
-        PDPage outputSize = new PDPage(pageSize);
-        PDRectangle outputPage = outputSize.getCropBox();
-        PDPageContentStream stream; // Current stream of "outputDoc".
-
-        final double degrees = Math.toRadians(flip ? 270 : 90);
-        Matrix matrix = Matrix.getRotateInstance(degrees, 0, 0);
-
-        PDRectangle cropBox = copyPage.getCropBox();
-        final float iw = cropBox.getWidth();
-        final float ih = cropBox.getHeight();
-        final float ow = outputPage.getWidth();
-        final float oh = outputPage.getHeight();
-
-        final float sw = ow / ih;
-        final float sh = oh / iw;
-
-        float scale;
-        float dx = 0.0f;
-        float dy = 0.0f;
-        if (sw < sh) {
-            scale = sw;
-            // Centre the pages on the output sheet.
-            dx = (oh - (iw * scale)) / (2 * scale);
-        }
-        else {
-            scale = sh;
-            // Centre the pages on the output sheet.
-            dy = (ow - (ih * scale)) / (2 * scale);
-        }
-
-        float tx = iw / 2;
-        float ty = ih / 2;
-
+    public void genBooklet() {
+        BookletJob job;
         try {
-            stream = new PDPageContentStream(outputDoc, copyPage,
-                    PDPageContentStream.AppendMode.PREPEND, false, false);
-
-            stream.transform(Matrix.getTranslateInstance(tx, ty));
-            stream.transform(matrix);
-            stream.transform(Matrix.getScaleInstance(scale, scale));
-
-            if (flip) {
-                ty = tx / scale;
-                tx -= (ih - oh) / (2 * scale);
-                ty -= dy;
-            }
-            else {
-                tx = ty / scale;
-                ty -= (iw - ow) / (2 * scale);
-                tx -= dx;
-            }
+            job = getJob();
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
 
-            stream.transform(Matrix.getTranslateInstance(-tx, -ty));
+            return;
+        }
 
-            copyPage.setMediaBox(outputSize.getMediaBox());
-            copyPage.setCropBox(outputSize.getCropBox());
+        final long start = System.nanoTime();
 
-            stream.close();
-        } catch (IOException e) {
+        if (ENGINE.generate(job, null)) {
+            final long ms = (System.nanoTime() - start) / 1000000;
+            System.out.printf("Generated %d pages in %d ms\n",
+                    lastPage - firstPage, ms);
+            for (BookletJob.Output output : job.getOutputs()) {
+                System.out.println("File created in: "
+                        + output.getOutputPDF());
+            }
         }
-
     }
 
 }
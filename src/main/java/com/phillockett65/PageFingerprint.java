@@ -0,0 +1,270 @@
+/*  PDFBook - a simple application to generate a booklet from of a PDF.
+ *
+ *  Copyright 2020 Philip Lockett.
+ *
+ *  This file is part of PDFBook.
+ *
+ *  PDFBook is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  PDFBook is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with PDFBook.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+ /*
+ * PageFingerprint calculates a digest of everything that affects how a page
+ * is drawn: its boxes, rotation, transparency group, content streams and
+ * resources. Pages with the same fingerprint draw identically, so the
+ * fingerprint can be used to detect pages that have changed between runs, or
+ * identical pages within a document.
+ *
+ * Streams are digested in their encoded form, so nothing is decompressed. The
+ * digest of each resource object is cached, so objects shared between pages,
+ * such as fonts, are only read once per PageFingerprint instance.
+ */
+package com.phillockett65;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSBoolean;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSFloat;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNull;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDResources;
+
+/**
+ *
+ * @author Phil
+ */
+class PageFingerprint {
+
+    private static final byte[] CYCLE = { 'C', 'Y', 'C', 'L', 'E' };
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    // Digest of each dictionary, array and stream visited so far.
+    private final Map<COSBase, byte[]> digests = new IdentityHashMap<>();
+    private final byte[] buffer = new byte[8192];
+
+
+    /**
+     * Calculate the fingerprint of a page.
+     *
+     * @param page to fingerprint.
+     * @return the fingerprint as a hexadecimal string.
+     * @throws IOException if a content stream could not be read.
+     */
+    public String get(PDPage page) throws IOException {
+        MessageDigest md = newDigest();
+
+        update(md, page.getMediaBox().toString());
+        update(md, page.getCropBox().toString());
+        update(md, Integer.toString(page.getRotation()));
+
+        COSBase group = page.getCOSObject().getDictionaryObject(COSName.GROUP);
+        if (group != null) {
+            md.update(getDigest(group));
+        }
+
+        COSBase contents = page.getCOSObject().getDictionaryObject(
+                COSName.CONTENTS);
+        if (contents != null) {
+            md.update(getDigest(contents));
+        }
+
+        PDResources resources = page.getResources();
+        if (resources != null) {
+            md.update(getDigest(resources.getCOSObject()));
+        }
+
+        return toHex(md.digest());
+    }
+
+    /**
+     * Combine several fingerprints into one.
+     *
+     * @param fingerprints to combine, in order.
+     * @return the combined fingerprint as a hexadecimal string.
+     */
+    public static String combine(List<String> fingerprints) {
+        MessageDigest md = newDigest();
+        for (String fingerprint : fingerprints) {
+            update(md, fingerprint);
+        }
+
+        return toHex(md.digest());
+    }
+
+    /**
+     * Get the digest of an object, including everything it refers to.
+     * Objects with the same digest draw identically.
+     *
+     * @param base object to digest.
+     * @return the digest of the object.
+     * @throws IOException if a stream could not be read.
+     */
+    public byte[] getDigest(COSBase base) throws IOException {
+        if (base instanceof COSObject) {
+            base = ((COSObject) base).getObject();
+        }
+
+        if (!(base instanceof COSDictionary) && !(base instanceof COSArray)) {
+            return getValueDigest(base);
+        }
+
+        byte[] digest = digests.get(base);
+        if (digest != null) {
+            return digest;
+        }
+
+        // Mark the object as in progress so that cycles terminate.
+        digests.put(base, CYCLE);
+
+        MessageDigest md = newDigest();
+        if (base instanceof COSArray) {
+            update(md, "[");
+            for (COSBase item : (COSArray) base) {
+                md.update(getDigest(item));
+            }
+        } else {
+            COSDictionary dict = (COSDictionary) base;
+            update(md, "<<");
+
+            List<COSName> keys = new ArrayList<>(dict.keySet());
+            Collections.sort(keys);
+            for (COSName key : keys) {
+                // The parent is not part of what the object draws.
+                if (COSName.PARENT.equals(key)) {
+                    continue;
+                }
+
+                update(md, key.getName());
+                md.update(getDigest(dict.getItem(key)));
+            }
+
+            if (base instanceof COSStream) {
+                update(md, "stream");
+                InputStream in = ((COSStream) base).createRawInputStream();
+                try {
+                    int count;
+                    while ((count = in.read(buffer)) != -1) {
+                        md.update(buffer, 0, count);
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+        }
+
+        digest = md.digest();
+        digests.put(base, digest);
+
+        return digest;
+    }
+
+    /**
+     * Get the digest of a simple object from its exact value, tagged with its
+     * type so that, for example, the name /1 and the number 1 differ. The
+     * value is not taken from toString(), which maps different string bytes
+     * to the same characters.
+     *
+     * @param base simple object to digest, which may be null.
+     * @return the digest of the object.
+     * @throws IOException if a number could not be written.
+     */
+    private static byte[] getValueDigest(COSBase base) throws IOException {
+        MessageDigest md = newDigest();
+        if (base instanceof COSString) {
+            md.update((byte) 'S');
+            md.update(((COSString) base).getBytes());
+        } else if (base instanceof COSName) {
+            md.update((byte) 'N');
+            update(md, ((COSName) base).getName());
+        } else if (base instanceof COSInteger) {
+            md.update((byte) 'I');
+            update(md, Long.toString(((COSInteger) base).longValue()));
+        } else if (base instanceof COSFloat) {
+            // The value as written to the PDF, which has all its digits.
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ((COSFloat) base).writePDF(out);
+            md.update((byte) 'F');
+            md.update(out.toByteArray());
+        } else if (base instanceof COSBoolean) {
+            md.update((byte) 'B');
+            update(md, Boolean.toString(((COSBoolean) base).getValue()));
+        } else if ((base == null) || (base instanceof COSNull)) {
+            md.update((byte) 'Z');
+        } else {
+            md.update((byte) '?');
+            update(md, base.toString());
+        }
+
+        return md.digest();
+    }
+
+    /**
+     * Create a new message digest.
+     *
+     * @return a SHA-1 message digest.
+     */
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-1.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Add a string to a message digest.
+     *
+     * @param md message digest to update.
+     * @param text to add.
+     */
+    private static void update(MessageDigest md, String text) {
+        md.update(text.getBytes(StandardCharsets.UTF_8));
+        md.update((byte) 0);
+    }
+
+    /**
+     * Convert a digest to a hexadecimal string.
+     *
+     * @param digest to convert.
+     * @return the digest as a hexadecimal string.
+     */
+    private static String toHex(byte[] digest) {
+        char[] text = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; ++i) {
+            text[2 * i] = HEX[(digest[i] >> 4) & 0xF];
+            text[2 * i + 1] = HEX[digest[i] & 0xF];
+        }
+
+        return new String(text);
+    }
+
+}
@@ -0,0 +1,272 @@
+/*  PDFBook - a simple application to generate a booklet from of a PDF.
+ *
+ *  Copyright 2020 Philip Lockett.
+ *
+ *  This file is part of PDFBook.
+ *
+ *  PDFBook is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  PDFBook is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with PDFBook.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+ /*
+ * PageRasterizer renders source pages to BufferedImages on a pool of threads
+ * and wraps each image in a form XObject that can be used in place of the
+ * vector form produced by LayerUtility.importPageAsForm(). It is used as a
+ * fallback for pages whose content is too complex to be imported and printed
+ * efficiently.
+ *
+ * PDFRenderer is not thread safe, so each rendering thread loads its own copy
+ * of the source PDF document.
+ */
+package com.phillockett65;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.graphics.form.PDFormXObject;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.apache.pdfbox.rendering.ImageType;
+import org.apache.pdfbox.rendering.PDFRenderer;
+
+/**
+ *
+ * @author Phil
+ */
+class PageRasterizer {
+
+    private final String sourcePDF;     // The source PDF filepath.
+    private final float dpi;            // Resolution of the rendered pages.
+    private final ExecutorService pool;
+
+    private final Map<Integer, Future<BufferedImage>> pending = new HashMap<>();
+    private final List<PDDocument> docs = new ArrayList<>();
+    private final ThreadLocal<PDDocument> localDoc = new ThreadLocal<>();
+
+
+    /**
+     * Constructor.
+     *
+     * @param inPDF file path for source PDF.
+     * @param resolution to render the pages at in dots per inch.
+     * @param threads number of pages to render in parallel.
+     */
+    public PageRasterizer(String inPDF, float resolution, int threads) {
+        sourcePDF = inPDF;
+        dpi = resolution;
+        pool = Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * Start rendering a page of the source PDF in the background.
+     *
+     * @param pn page number to render (pages start from 0).
+     */
+    public void submit(final int pn) {
+        if (pending.containsKey(pn)) {
+            return;
+        }
+
+        pending.put(pn, pool.submit(new Callable<BufferedImage>() {
+            @Override
+            public BufferedImage call() throws Exception {
+                return new PDFRenderer(getDocument()).renderImageWithDPI(pn,
+                        dpi, ImageType.RGB);
+            }
+        }));
+    }
+
+    /**
+     * Indicate whether a page has been submitted for rendering.
+     *
+     * @param pn page number (pages start from 0).
+     * @return true if the page has been submitted, false otherwise.
+     */
+    public boolean isSubmitted(int pn) {
+        return pending.containsKey(pn);
+    }
+
+    /**
+     * Wait for a submitted page to be rendered and wrap the image in a form
+     * XObject of the given frame size.
+     *
+     * @param outputDoc document the form is to be added to.
+     * @param pn page number of a submitted page (pages start from 0).
+     * @param frame size of the source page.
+     * @return the form XObject drawing the rendered page.
+     * @throws IOException if the page could not be rendered.
+     */
+    public PDFormXObject getForm(PDDocument outputDoc, int pn,
+            PDRectangle frame) throws IOException {
+
+        BufferedImage image;
+        try {
+            image = pending.remove(pn).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted rendering page " + (pn + 1), e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed rendering page " + (pn + 1), e);
+        }
+
+        final float w = frame.getWidth();
+        final float h = frame.getHeight();
+
+        PDImageXObject pdImage = LosslessFactory.createFromImage(outputDoc,
+                image);
+        PDResources resources = new PDResources();
+        COSName name = resources.add(pdImage);
+
+        PDFormXObject form = new PDFormXObject(outputDoc);
+        form.setBBox(new PDRectangle(w, h));
+        form.setResources(resources);
+
+        // Scale the unit square of the image to fill the frame.
+        String content = String.format(Locale.US,
+                "q %.4f 0 0 %.4f 0 0 cm /%s Do Q\n", w, h, name.getName());
+        OutputStream stream = form.getContentStream().createOutputStream(
+                COSName.FLATE_DECODE);
+        stream.write(content.getBytes(StandardCharsets.US_ASCII));
+        stream.close();
+
+        return form;
+    }
+
+    /**
+     * Stop the rendering threads and close their copies of the source PDF.
+     */
+    public void close() {
+        pool.shutdownNow();
+        try {
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (docs) {
+            for (PDDocument doc : docs) {
+                try {
+                    doc.close();
+                } catch (IOException e) {
+                    System.out.println(e.getMessage());
+                }
+            }
+            docs.clear();
+        }
+        pending.clear();
+    }
+
+    /**
+     * Get the copy of the source PDF for the current rendering thread.
+     *
+     * @return the thread's own source PDF document.
+     * @throws IOException if the source PDF could not be loaded.
+     */
+    private PDDocument getDocument() throws IOException {
+        PDDocument doc = localDoc.get();
+        if (doc == null) {
+            doc = PDDocument.load(new File(sourcePDF));
+            localDoc.set(doc);
+            synchronized (docs) {
+                docs.add(doc);
+            }
+        }
+
+        return doc;
+    }
+
+    /**
+     * Measure the complexity of a page as the number of XObjects it draws,
+     * including those nested inside form XObjects.
+     *
+     * @param page to measure.
+     * @return the number of XObject references reachable from the page.
+     */
+    public static int getComplexity(PDPage page) {
+        PDResources resources = page.getResources();
+        if (resources == null) {
+            return 0;
+        }
+
+        return getComplexity(resources.getCOSObject(),
+                new IdentityHashMap<COSBase, Integer>());
+    }
+
+    /**
+     * Count the XObject references reachable from the resources of a page or
+     * form. Forms that are used more than once are only walked once.
+     *
+     * @param resources dictionary of the page or form.
+     * @param counts already calculated for each form.
+     * @return the number of XObject references reachable from resources.
+     */
+    private static int getComplexity(COSDictionary resources,
+            Map<COSBase, Integer> counts) {
+
+        COSDictionary xobjects = resources.getCOSDictionary(COSName.XOBJECT);
+        if (xobjects == null) {
+            return 0;
+        }
+
+        int count = 0;
+        for (COSName name : xobjects.keySet()) {
+            COSBase base = xobjects.getDictionaryObject(name);
+            ++count;
+            if (!(base instanceof COSStream)) {
+                continue;
+            }
+
+            COSStream xobject = (COSStream) base;
+            COSDictionary nestedResources =
+                    xobject.getCOSDictionary(COSName.RESOURCES);
+            if (!COSName.FORM.equals(xobject.getCOSName(COSName.SUBTYPE))
+                    || nestedResources == null) {
+                continue;
+            }
+
+            Integer nested = counts.get(xobject);
+            if (nested == null) {
+                counts.put(xobject, 0);     // Guard against cycles.
+                nested = getComplexity(nestedResources, counts);
+                counts.put(xobject, nested);
+            }
+            count += nested;
+        }
+
+        return count;
+    }
+
+}
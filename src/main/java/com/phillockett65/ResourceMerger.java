@@ -0,0 +1,186 @@
+/*  PDFBook - a simple application to generate a booklet from of a PDF.
+ *
+ *  Copyright 2020 Philip Lockett.
+ *
+ *  This file is part of PDFBook.
+ *
+ *  PDFBook is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  PDFBook is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with PDFBook.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+ /*
+ * ResourceMerger replaces resources of the generated pages with identical
+ * resources already used by earlier pages, so each is saved only once.
+ *
+ * When a booklet is updated incrementally, the sections that have changed are
+ * imported again, which clones the fonts, images and optional content groups
+ * they share with the reused pages a second time. Each resource is identified
+ * by its PageFingerprint digest, and every entry of a resource dictionary is
+ * pointed at the first resource found with the same digest. The duplicates
+ * are then no longer referenced and are left out when the document is saved.
+ *
+ * Only the resources of the forms drawn on each page are merged. The optional
+ * content groups of the page itself are the layers added for each imported
+ * page, which are kept apart even if they match.
+ */
+package com.phillockett65;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.pdmodel.PDPage;
+
+/**
+ *
+ * @author Phil
+ */
+class ResourceMerger {
+
+    private final PageFingerprint fingerprint = new PageFingerprint();
+
+    // First resource found with each digest, as held by its dictionary.
+    private final Map<String, COSBase> resources = new HashMap<>();
+
+    // Resource dictionaries already merged.
+    private final Set<COSDictionary> visited = Collections.newSetFromMap(
+            new IdentityHashMap<COSDictionary, Boolean>());
+    private int merged = 0;
+
+
+    /**
+     * Merge the resources of the forms drawn on a page with those of the
+     * pages added before it. Pages whose resources should be kept must be
+     * added first.
+     *
+     * @param page of the generated document.
+     * @throws IOException if a resource could not be read.
+     */
+    public void addPage(PDPage page) throws IOException {
+        COSDictionary pageRes = page.getCOSObject().getCOSDictionary(
+                COSName.RESOURCES);
+        COSDictionary xobjects = (pageRes != null)
+                ? pageRes.getCOSDictionary(COSName.XOBJECT) : null;
+        if (xobjects == null) {
+            return;
+        }
+
+        for (COSName name : xobjects.keySet()) {
+            merge(xobjects, name);
+        }
+    }
+
+    /**
+     * Get the number of resources replaced so far.
+     *
+     * @return the number of resources replaced.
+     */
+    public int getMerged() {
+        return merged;
+    }
+
+    /**
+     * Merge every entry of a resource dictionary, such as the fonts and
+     * images used by a form.
+     *
+     * @param dict resource dictionary to merge.
+     * @throws IOException if a resource could not be read.
+     */
+    private void mergeResources(COSDictionary dict) throws IOException {
+        if (!visited.add(dict)) {
+            return;
+        }
+
+        for (COSName category : dict.keySet()) {
+            COSBase value = resolve(dict.getItem(category));
+            if (value instanceof COSDictionary) {
+                COSDictionary entries = (COSDictionary) value;
+                for (COSName name : entries.keySet()) {
+                    merge(entries, name);
+                }
+            }
+        }
+    }
+
+    /**
+     * Point an entry of a dictionary at the first resource found with the
+     * same digest, or record it as that resource if it is the first.
+     *
+     * @param dict holding the resource.
+     * @param name of the resource in the dictionary.
+     * @throws IOException if the resource could not be read.
+     */
+    private void merge(COSDictionary dict, COSName name) throws IOException {
+        final COSBase item = dict.getItem(name);
+        final COSBase value = resolve(item);
+        if (!(value instanceof COSDictionary) && !(value instanceof COSArray)) {
+            return;
+        }
+
+        final String digest = toHex(fingerprint.getDigest(value));
+        final COSBase first = resources.get(digest);
+        if (first == null) {
+            resources.put(digest, item);
+
+            // Forms, patterns and Type 3 fonts have resources of their own.
+            if (value instanceof COSDictionary) {
+                COSDictionary inner = ((COSDictionary) value)
+                        .getCOSDictionary(COSName.RESOURCES);
+                if (inner != null) {
+                    mergeResources(inner);
+                }
+            }
+        } else if (resolve(first) != value) {
+            dict.setItem(name, first);
+            ++merged;
+        }
+    }
+
+    /**
+     * Get the object an indirect reference refers to.
+     *
+     * @param base object, which may be an indirect reference.
+     * @return the object referred to, or the object itself.
+     */
+    private static COSBase resolve(COSBase base) {
+        if (base instanceof COSObject) {
+            return ((COSObject) base).getObject();
+        }
+
+        return base;
+    }
+
+    /**
+     * Convert a digest to a hexadecimal string, to use as a map key.
+     *
+     * @param digest to convert.
+     * @return the digest as a hexadecimal string.
+     */
+    private static String toHex(byte[] digest) {
+        StringBuilder text = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            text.append(String.format("%02x", b & 0xff));
+        }
+
+        return text.toString();
+    }
+
+}
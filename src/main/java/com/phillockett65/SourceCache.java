@@ -0,0 +1,228 @@
+/*  PDFBook - a simple application to generate a booklet from of a PDF.
+ *
+ *  Copyright 2020 Philip Lockett.
+ *
+ *  This file is part of PDFBook.
+ *
+ *  PDFBook is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  PDFBook is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with PDFBook.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+ /*
+ * SourceCache remembers the details of recently selected source PDF documents
+ * so that they do not have to be loaded again when they are reselected. The
+ * details are keyed by file path, size and modification time, so a file that
+ * has changed is probed again. The cache is kept in a small text file in the
+ * user's home directory, with the most recently used entry last.
+ */
+package com.phillockett65;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.encryption.InvalidPasswordException;
+
+/**
+ *
+ * @author Phil
+ */
+class SourceCache {
+
+    private static final int MAX_ENTRIES = 50;
+    private static final String SEPARATOR = "\t";
+
+    private final File store;           // File the cache is kept in.
+    private final Map<String, Info> entries =
+            new LinkedHashMap<String, Info>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Info> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+
+    /**
+     * The details of a source PDF document.
+     */
+    public static class Info {
+        private final int pageCount;
+        private final boolean encrypted;
+        private final String pageSizes;
+
+        private Info(int count, boolean locked, String sizes) {
+            pageCount = count;
+            encrypted = locked;
+            pageSizes = sizes;
+        }
+
+        /**
+         * @return the number of pages, 0 if the document could not be read.
+         */
+        public int getPageCount() {
+            return pageCount;
+        }
+
+        /**
+         * @return true if the document is encrypted, false otherwise.
+         */
+        public boolean isEncrypted() {
+            return encrypted;
+        }
+
+        /**
+         * @return the distinct page sizes in points, such as "612x792".
+         */
+        public String getPageSizes() {
+            return pageSizes;
+        }
+    }
+
+    /**
+     * Constructor. Loads any previously saved entries.
+     *
+     * @param file to keep the cache in.
+     */
+    public SourceCache(File file) {
+        store = file;
+        load();
+    }
+
+    /**
+     * Get the cache kept in the user's home directory.
+     *
+     * @return the default cache.
+     */
+    public static SourceCache getDefault() {
+        return new SourceCache(new File(System.getProperty("user.home"),
+                ".pdfbook-cache"));
+    }
+
+    /**
+     * Get the cached details of a source PDF document.
+     *
+     * @param source PDF document file.
+     * @return the details, or null if the file has not been probed since it
+     * was last changed.
+     */
+    public synchronized Info get(File source) {
+        return entries.get(getKey(source));
+    }
+
+    /**
+     * Load a source PDF document to find its details, then add them to the
+     * cache and save it.
+     *
+     * @param source PDF document file.
+     * @return the details of the document.
+     * @throws IOException if the document could not be read.
+     */
+    public Info probe(File source) throws IOException {
+        final String key = getKey(source);
+        Info info;
+
+        try (PDDocument doc = PDDocument.load(source,
+                MemoryUsageSetting.setupTempFileOnly())) {
+            Set<String> sizes = new LinkedHashSet<>();
+            for (PDPage page : doc.getPages()) {
+                PDRectangle box = page.getCropBox();
+                sizes.add(Math.round(box.getWidth()) + "x"
+                        + Math.round(box.getHeight()));
+            }
+            info = new Info(doc.getNumberOfPages(), doc.isEncrypted(),
+                    String.join(" ", sizes));
+        } catch (InvalidPasswordException e) {
+            info = new Info(0, true, "");
+        }
+
+        synchronized (this) {
+            entries.put(key, info);
+            save();
+        }
+
+        return info;
+    }
+
+    /**
+     * Generate the cache key for a file.
+     *
+     * @param source PDF document file.
+     * @return key made from the path, size and modification time of the file.
+     */
+    private static String getKey(File source) {
+        return source.getAbsolutePath() + "|" + source.length() + "|"
+                + source.lastModified();
+    }
+
+    /**
+     * Read the saved entries, ignoring any that cannot be parsed.
+     */
+    private void load() {
+        if (!store.isFile()) {
+            return;
+        }
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(store), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(SEPARATOR, -1);
+                if (fields.length != 4) {
+                    continue;
+                }
+
+                try {
+                    entries.put(fields[0], new Info(
+                            Integer.parseInt(fields[1]),
+                            Boolean.parseBoolean(fields[2]), fields[3]));
+                } catch (NumberFormatException e) {
+                }
+            }
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Write all entries, least recently used first.
+     */
+    private void save() {
+        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(store), StandardCharsets.UTF_8))) {
+            for (Map.Entry<String, Info> entry : entries.entrySet()) {
+                Info info = entry.getValue();
+                writer.write(entry.getKey() + SEPARATOR + info.pageCount
+                        + SEPARATOR + info.encrypted + SEPARATOR
+                        + info.pageSizes);
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+}
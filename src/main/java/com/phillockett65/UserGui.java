@@ -32,6 +32,7 @@ package com.phillockett65;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.io.File;
+import java.util.concurrent.ExecutionException;
 import javax.swing.ImageIcon;
 import javax.swing.JFileChooser;
 import javax.swing.SwingWorker;
@@ -49,6 +50,8 @@ public class UserGui extends javax.swing.JFrame {
      */
     private static final long serialVersionUID = 1L;
     private PDFBook booklet;
+    private final SourceCache sourceCache = SourceCache.getDefault();
+    private JobQueue jobQueue;    // Created when the first job is queued.
     private int maxPage = 0;
     private String baseDirectory;
     private String sourcePDF;     // The source PDF filepath.
@@ -124,6 +127,7 @@ public class UserGui extends javax.swing.JFrame {
         outputPDFjLabel = new javax.swing.JLabel();
         outputPDFjTextField = new javax.swing.JTextField();
         generatejButton = new javax.swing.JButton();
+        queuejButton = new javax.swing.JButton();
         sectionSizejLabel = new javax.swing.JLabel();
         sectionSizejComboBox = new javax.swing.JComboBox<>();
         pagesjLabel = new javax.swing.JLabel();
@@ -214,6 +218,18 @@ public class UserGui extends javax.swing.JFrame {
         getContentPane().add(generatejButton);
         generatejButton.setBounds(520, 160, 103, 31);
 
+        queuejButton.setFont(new java.awt.Font("Tahoma", 0, 18)); // NOI18N
+        queuejButton.setText("Queue");
+        queuejButton.setToolTipText("Select the Source PDF Document first.");
+        queuejButton.setEnabled(false);
+        queuejButton.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                queuejButtonActionPerformed(evt);
+            }
+        });
+        getContentPane().add(queuejButton);
+        queuejButton.setBounds(410, 160, 93, 31);
+
         sectionSizejLabel.setFont(new java.awt.Font("Tahoma", 0, 14)); // NOI18N
         sectionSizejLabel.setText("Section Size:");
         sectionSizejLabel.setToolTipText("Number of sheets of paper per section.");
@@ -298,45 +314,36 @@ public class UserGui extends javax.swing.JFrame {
      */
     private void generatejButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_generatejButtonActionPerformed
 
-        outputPDF = baseDirectory + "\\" + outputPDFjTextField.getText()
-                + ".pdf";
-
-        booklet = new PDFBook(sourcePDF, outputPDF);
-
-        booklet.setPageSize(getPS());
-        booklet.setRotate(getFlipReverseSide());
-        booklet.setSheetCount(getSheetCount());
-
-        final int first = (Integer)firstPagejSpinner.getValue();
-        final int last = (Integer)lastPagejSpinner.getValue();
-        booklet.setFirstPage(first-1);
-        booklet.setLastPage(last);
+        booklet = createBooklet();
+        final String created = outputPDF;   // Queue may change outputPDF.
 
         generatejButton.setEnabled(false);
         outputjLabel.setText("");
 
         // Use PDFBook.ProgressWorker to generate PDF in the background and
         // update the progress bar as we go.
-        PDFBook.ProgressWorker pw = booklet.new ProgressWorker();
+        final PDFBook.ProgressWorker pw = booklet.new ProgressWorker();
         pw.addPropertyChangeListener(new PropertyChangeListener() {
 
             @Override
             public void propertyChange(PropertyChangeEvent evt) {
                 String name = evt.getPropertyName();
+                // Wait for FINISHED rather than the DONE state, as it carries
+                // the result and a cancelled worker is DONE while it is still
+                // generating.
                 if (name.equals("progress")) {
                     int progress = (int) evt.getNewValue();
                     generatejProgressBar.setValue(progress);
                     repaint();
-                } else if (name.equals("state")) {
-                    SwingWorker.StateValue state = (SwingWorker.StateValue) evt.getNewValue();
-                    switch (state) {
-                        case DONE:
-                            generatejButton.setEnabled(true);
-
-                            outputjLabel.setText("File created in: " + outputPDF);
-                            break;
-                        default:
-                            break;
+                } else if (name.equals(PDFBook.ProgressWorker.FINISHED)) {
+                    generatejButton.setEnabled(true);
+
+                    if (Boolean.TRUE.equals(evt.getNewValue())) {
+                        outputjLabel.setText("File created in: " + created);
+                    } else if (pw.isCancelled()) {
+                        outputjLabel.setText("Cancelled: " + created);
+                    } else {
+                        outputjLabel.setText("Unable to create: " + created);
                     }
                 }
             }
@@ -346,6 +353,48 @@ public class UserGui extends javax.swing.JFrame {
 
     }//GEN-LAST:event_generatejButtonActionPerformed
 
+    /**
+     * Acts on the "Queue" button click event. Adds a booklet with the current
+     * settings to the job queue, which generates queued booklets in the
+     * background, several at a time.
+     *
+     * @param evt the event that triggered the handler.
+     */
+    private void queuejButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_queuejButtonActionPerformed
+        if (jobQueue == null) {
+            jobQueue = new JobQueue();
+            jobQueue.setIconImage(getIconImage());
+        }
+
+        PDFBook job = createBooklet();
+        jobQueue.add(job, sourcePDF, outputPDF);
+        jobQueue.setVisible(true);
+    }//GEN-LAST:event_queuejButtonActionPerformed
+
+    /**
+     * Create a PDFBook for the selected source PDF document with the current 
+     * settings, and set outputPDF to the file path of the generated PDF.
+     *
+     * @return the configured PDFBook.
+     */
+    private PDFBook createBooklet() {
+        outputPDF = baseDirectory + "\\" + outputPDFjTextField.getText()
+                + ".pdf";
+
+        PDFBook book = new PDFBook(sourcePDF, outputPDF, maxPage);
+
+        book.setPageSize(getPS());
+        book.setRotate(getFlipReverseSide());
+        book.setSheetCount(getSheetCount());
+
+        final int first = (Integer)firstPagejSpinner.getValue();
+        final int last = (Integer)lastPagejSpinner.getValue();
+        book.setFirstPage(first-1);
+        book.setLastPage(last);
+
+        return book;
+    }
+
     private void updatePageCountjLabel() {
         Integer count = (Integer)lastPagejSpinner.getValue();
         count -= (Integer)firstPagejSpinner.getValue();
@@ -354,17 +403,78 @@ public class UserGui extends javax.swing.JFrame {
     }
 
     /**
-     * Find the maximum page number of the selected source PDF document.
+     * Find the maximum page number of the selected source PDF document. The
+     * details of recently selected documents are cached, otherwise the
+     * document is probed in the background so the GUI remains responsive.
      */
     private void setMaxPage() {
-        PDFBook temp = new PDFBook(sourcePDF, outputPDF);
-        maxPage = temp.getMaxPage();
+        final File source = new File(sourcePDF);
+        SourceCache.Info info = sourceCache.get(source);
+        if (info != null) {
+            setSourceInfo(info);
+
+            return;
+        }
+
+        maxPage = 0;
+        firstPagejSpinner.setEnabled(false);
+        lastPagejSpinner.setEnabled(false);
+        generatejButton.setEnabled(false);
+        queuejButton.setEnabled(false);
+        pageCountjLabel.setText("(reading...)");
+
+        final String probed = sourcePDF;
+        SwingWorker<SourceCache.Info, Object> probe =
+                new SwingWorker<SourceCache.Info, Object>() {
+
+            @Override
+            protected SourceCache.Info doInBackground() throws Exception {
+                return sourceCache.probe(source);
+            }
+
+            @Override
+            protected void done() {
+                // Ignore the result if another file has since been selected.
+                if (!probed.equals(sourcePDF)) {
+                    return;
+                }
+
+                try {
+                    setSourceInfo(get());
+                } catch (InterruptedException | ExecutionException e) {
+                    pageCountjLabel.setText("");
+                    outputjLabel.setText("Unable to read: " + sourcePDF);
+                }
+            }
+        };
+        probe.execute();
+    }
+
+    /**
+     * Set up the page spinners from the details of the selected source PDF
+     * document.
+     *
+     * @param info details of the source PDF document.
+     */
+    private void setSourceInfo(SourceCache.Info info) {
+        maxPage = info.getPageCount();
+        sourcePDFjTextField.setToolTipText("Page sizes: "
+                + info.getPageSizes());
         if (maxPage > 0) {
             firstPagejSpinner.setModel(new javax.swing.SpinnerNumberModel(1, 1, maxPage, 1));
             firstPagejSpinner.setEnabled(true);
             lastPagejSpinner.setModel(new javax.swing.SpinnerNumberModel(maxPage, 1, maxPage, 1));
             lastPagejSpinner.setEnabled(true);
             updatePageCountjLabel();
+            generatejButton.setEnabled(true);
+            queuejButton.setEnabled(true);
+        } else {
+            pageCountjLabel.setText("");
+            generatejButton.setEnabled(false);
+            queuejButton.setEnabled(false);
+            if (info.isEncrypted()) {
+                outputjLabel.setText("Document is encrypted: " + sourcePDF);
+            }
         }
     }
 
@@ -402,19 +512,23 @@ public class UserGui extends javax.swing.JFrame {
     }
 
     /**
-     * Acts on the "Browse..." button click event and enables the "Generate"
-     * button if a valid source PDF file is selected.
+     * Acts on the "Browse..." button click event. The "Generate" and "Queue"
+     * buttons are enabled by setSourceInfo() if a readable source PDF file is
+     * selected.
      *
      * @param evt the event that triggered the handler.
      */
     private void browsejButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_browsejButtonActionPerformed
         final boolean selected = selectSourcePDF();
         if (selected) {
-            generatejButton.setEnabled(true);
+            // The button is enabled once the source has been read.
             generatejButton.setToolTipText("Generate the PDF in booklet form.");
+            queuejButton.setToolTipText("Add the PDF to the booklet queue.");
         } else {
             generatejButton.setEnabled(false);
             generatejButton.setToolTipText("Select the Source Document first.");
+            queuejButton.setEnabled(false);
+            queuejButton.setToolTipText("Select the Source Document first.");
         }
     }//GEN-LAST:event_browsejButtonActionPerformed
 
@@ -491,6 +605,7 @@ public class UserGui extends javax.swing.JFrame {
     private javax.swing.JComboBox<String> pageSizejComboBox;
     private javax.swing.JLabel pageSizejLabel;
     private javax.swing.JLabel pagesjLabel;
+    private javax.swing.JButton queuejButton;
     private javax.swing.JComboBox<String> sectionSizejComboBox;
     private javax.swing.JLabel sectionSizejLabel;
     private javax.swing.JLabel sourcePDFjLabel;
@@ -0,0 +1,430 @@
+/*  PDFBook - a simple application to generate a booklet from of a PDF.
+ *
+ *  Copyright 2020 Philip Lockett.
+ *
+ *  This file is part of PDFBook.
+ *
+ *  PDFBook is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  PDFBook is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with PDFBook.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+ /*
+ * WatchFolder is a hot folder front-end to BookletEngine. It watches an
+ * input directory, and its immediate sub-directories, for PDF files and
+ * generates a booklet version of each one in an output directory. It requires
+ * 2 parameters, the input directory and the output directory, and optionally
+ * the number of booklets to generate in parallel.
+ *
+ * Example usage:
+ *  java -cp path-to-PDFBook.jar com.phillockett65.WatchFolder in out 4
+ *
+ * A file is only processed once its size has stopped changing, so files that
+ * are still being copied into the folder are not picked up part written. Each
+ * folder may contain a "pdfbook.properties" file to set the generator options
+ * for the files dropped into it, for example:
+ *
+ *  pageSize=A4
+ *  sheetCount=4
+ *  rotate=true
+ *  writeBuffer=1048576
+ *  sync=true
+ *  compact=true
+ *  linearize=true
+ *
+ * Booklets are written to the matching sub-directory of the output directory
+ * with the same file name as the source PDF. Files whose booklet is as new as
+ * the source are skipped, so neither directory may contain the other.
+ */
+package com.phillockett65;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+
+/**
+ *
+ * @author Phil
+ */
+public class WatchFolder {
+
+    public static final String SETTINGS = "pdfbook.properties";
+    private static final long STABLE_MS = 2000;     // Unchanged size period.
+    private static final long POLL_MS = 500;        // Size check period.
+
+    private final Path inputDir;
+    private final Path outputDir;
+    private final ExecutorService workers;
+    private final ScheduledExecutorService poller;
+    private final WatchService watcher;
+    private final Map<WatchKey, Path> keys = new HashMap<>();
+    private final BookletEngine engine = new BookletEngine();
+
+    // Files waiting for their size to settle, guarded by "pending".
+    private final Map<Path, Candidate> pending = new HashMap<>();
+
+    // Files being generated, guarded by "pending". A file modified while its
+    // booklet is generated waits in "pending" until the first job finishes.
+    private final Set<Path> running = new HashSet<>();
+
+
+    /**
+     * A file that has been seen but not yet queued for processing.
+     */
+    private static class Candidate {
+        private long size = -1;
+        private long changed = System.currentTimeMillis();
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param inDir directory to watch for source PDF files.
+     * @param outDir directory to write the generated PDF files to.
+     * @param threads number of booklets to generate in parallel.
+     * @throws IOException if the input directory cannot be watched.
+     * @throws IllegalArgumentException if either directory contains the
+     * other.
+     */
+    public WatchFolder(String inDir, String outDir, int threads)
+            throws IOException {
+        inputDir = getRealPath(inDir);
+        outputDir = getRealPath(outDir);
+
+        // Booklets written into a watched directory would be picked up as
+        // sources, and sources in the output directory could be overwritten.
+        if (outputDir.startsWith(inputDir) || inputDir.startsWith(outputDir)) {
+            throw new IllegalArgumentException("Input directory " + inputDir
+                    + " and output directory " + outputDir
+                    + " must not contain each other");
+        }
+
+        workers = Executors.newFixedThreadPool(threads);
+        poller = Executors.newSingleThreadScheduledExecutor();
+        watcher = FileSystems.getDefault().newWatchService();
+    }
+
+    /**
+     * System entry point for the hot folder version.
+     *
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length > 1) {
+            int threads = Runtime.getRuntime().availableProcessors();
+            if (args.length > 2) {
+                threads = Integer.parseInt(args[2]);
+            }
+
+            WatchFolder folder;
+            try {
+                folder = new WatchFolder(args[0], args[1], threads);
+            } catch (IllegalArgumentException e) {
+                System.out.println(e.getMessage());
+
+                return;
+            }
+            folder.run();
+        }
+    }
+
+    /**
+     * Get the absolute path of a directory, with any symbolic links resolved
+     * if it exists.
+     *
+     * @param dir path of the directory.
+     * @return the absolute path of the directory.
+     * @throws IOException if the links cannot be resolved.
+     */
+    private static Path getRealPath(String dir) throws IOException {
+        Path path = Paths.get(dir).toAbsolutePath().normalize();
+        if (Files.exists(path)) {
+            return path.toRealPath();
+        }
+
+        return path;
+    }
+
+    /**
+     * Watch the input directory until the thread is interrupted, queuing each
+     * PDF file that arrives once it has been completely written.
+     *
+     * @throws IOException if the input directory cannot be watched.
+     */
+    public void run() throws IOException {
+        register(inputDir);
+        File[] dirs = inputDir.toFile().listFiles();
+        if (dirs != null) {
+            for (File dir : dirs) {
+                if (dir.isDirectory()) {
+                    register(dir.toPath());
+                }
+            }
+        }
+
+        poller.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                queueStableFiles();
+            }
+        }, POLL_MS, POLL_MS, TimeUnit.MILLISECONDS);
+
+        System.out.println("Watching: " + inputDir);
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                Path dir = keys.get(key);
+
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        continue;
+                    }
+
+                    Path path = dir.resolve((Path) event.context());
+                    if (Files.isDirectory(path) && dir.equals(inputDir)) {
+                        register(path);
+                    } else {
+                        addCandidate(path);
+                    }
+                }
+
+                if (!key.reset()) {
+                    keys.remove(key);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Stop watching and wait for the queued booklets to be generated.
+     */
+    public void close() {
+        poller.shutdownNow();
+        workers.shutdown();
+        try {
+            watcher.close();
+            workers.awaitTermination(1, TimeUnit.HOURS);
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Watch a directory and add any PDF files already in it as candidates.
+     *
+     * @param dir to watch.
+     * @throws IOException if the directory cannot be watched.
+     */
+    private void register(Path dir) throws IOException {
+        WatchKey key = dir.register(watcher,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        keys.put(key, dir);
+
+        File[] files = dir.toFile().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                addCandidate(file.toPath());
+            }
+        }
+    }
+
+    /**
+     * Note that a file has been created or modified. PDF files are processed
+     * once their size has been stable for long enough.
+     *
+     * @param path of the file.
+     */
+    private void addCandidate(Path path) {
+        String name = path.getFileName().toString().toLowerCase();
+        if (!name.endsWith(".pdf") || !Files.isRegularFile(path)) {
+            return;
+        }
+
+        synchronized (pending) {
+            Candidate candidate = pending.get(path);
+            if (candidate == null) {
+                pending.put(path, new Candidate());
+            } else {
+                candidate.changed = System.currentTimeMillis();
+            }
+        }
+    }
+
+    /**
+     * Queue every candidate file whose size has not changed for STABLE_MS,
+     * unless its booklet is already being generated.
+     */
+    private void queueStableFiles() {
+        final long now = System.currentTimeMillis();
+
+        synchronized (pending) {
+            Iterator<Map.Entry<Path, Candidate>> it =
+                    pending.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Path, Candidate> entry = it.next();
+                final Path path = entry.getKey();
+                Candidate candidate = entry.getValue();
+
+                final File file = path.toFile();
+                if (!file.isFile()) {
+                    it.remove();
+                    continue;
+                }
+
+                final long size = file.length();
+                if (size != candidate.size) {
+                    candidate.size = size;
+                    candidate.changed = now;
+                    continue;
+                }
+
+                if ((now - candidate.changed >= STABLE_MS)
+                        && running.add(path)) {
+                    it.remove();
+                    workers.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            // Report failures, as the file is not retried and
+                            // the pool would otherwise discard the exception.
+                            try {
+                                generate(path);
+                            } catch (RuntimeException e) {
+                                System.out.println("Failed: " + path + ": "
+                                        + e);
+                            } finally {
+                                synchronized (pending) {
+                                    running.remove(path);
+                                }
+                            }
+                        }
+                    });
+                }
+            }
+        }
+    }
+
+    /**
+     * Generate the booklet version of a source PDF using the settings of the
+     * folder it was dropped into.
+     *
+     * @param source path of the source PDF.
+     * @throws NumberFormatException if a folder setting is not a number.
+     * @throws IllegalArgumentException if a folder setting is invalid.
+     */
+    private void generate(Path source) {
+        Path relative = inputDir.relativize(source);
+        Path target = outputDir.resolve(relative);
+
+        // Skip files whose booklet is already up to date, such as those left
+        // in the folder when the watcher was last stopped.
+        File output = target.toFile();
+        final long modified = source.toFile().lastModified();
+        if (output.lastModified() >= modified) {
+            return;
+        }
+
+        File parent = target.toFile().getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            System.out.println("Unable to create: " + parent);
+            return;
+        }
+
+        Properties settings = getSettings(source.getParent());
+        final String size = settings.getProperty("pageSize", "Letter");
+        PDRectangle pageSize = PDFBook.findPS(size);
+        if (pageSize == null) {
+            System.out.println("Unknown pageSize \"" + size + "\" in "
+                    + source.getParent().resolve(SETTINGS) + ", skipped: "
+                    + relative);
+            return;
+        }
+
+        // The job is built directly, as the source is only loaded once, by
+        // the engine, and the page range is limited to the source there.
+        BookletJob job = new BookletJob.Builder(source.toString(),
+                target.toString())
+                .setPageSize(pageSize)
+                .setSheetCount(Integer.parseInt(
+                        settings.getProperty("sheetCount", "1")))
+                .setRotate(Boolean.parseBoolean(
+                        settings.getProperty("rotate", "true")))
+                .setWriteBuffer(Integer.parseInt(
+                        settings.getProperty("writeBuffer", "0")))
+                .setSync(Boolean.parseBoolean(
+                        settings.getProperty("sync", "false")))
+                .setCompact(Boolean.parseBoolean(
+                        settings.getProperty("compact", "false")))
+                .setLinearize(Boolean.parseBoolean(
+                        settings.getProperty("linearize", "false")))
+                .build();
+
+        System.out.println("Generating: " + relative);
+        if (engine.generate(job, null)) {
+            // Date the booklet by the source it was generated from, so the
+            // source is generated again if it was modified during the job.
+            output.setLastModified(modified);
+            System.out.println("File created in: " + target);
+        } else {
+            System.out.println("Failed: " + relative);
+        }
+    }
+
+    /**
+     * Read the generator settings for a folder.
+     *
+     * @param dir folder containing the source PDF.
+     * @return the settings, which are empty if the folder has none.
+     */
+    private static Properties getSettings(Path dir) {
+        Properties settings = new Properties();
+        File file = dir.resolve(SETTINGS).toFile();
+        if (file.isFile()) {
+            try (InputStream in = new FileInputStream(file)) {
+                settings.load(in);
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+            }
+        }
+
+        return settings;
+    }
+
+}
@@ -0,0 +1,266 @@
+/*  PDFBook - a simple application to generate a booklet from of a PDF.
+ *
+ *  Copyright 2020 Philip Lockett.
+ *
+ *  This file is part of PDFBook.
+ *
+ *  PDFBook is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  PDFBook is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with PDFBook.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+ /*
+ * IncrementalTest updates a booklet incrementally, over and over, as pages of
+ * its source are edited and checks that the booklet keeps the same layers and
+ * doesn't grow beyond the size of a booklet generated from scratch. The source
+ * has a layer and an image shared by every page, which the rebuilt sections
+ * must share with the reused ones rather than carry copies of.
+ */
+package com.phillockett65;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.apache.pdfbox.pdmodel.graphics.optionalcontent.PDOptionalContentGroup;
+import org.apache.pdfbox.pdmodel.graphics.optionalcontent.PDOptionalContentProperties;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ * @author Phil
+ */
+public class IncrementalTest {
+
+    private static final int PAGES = 16;
+    private static final int EDITS = 4;
+
+    // Allowance for the text added by each edit.
+    private static final double SLACK = 1.05;
+
+    private static final File DIR = new File("target", "incremental");
+
+
+    /**
+     * Update a booklet after each edit and check its layers and size.
+     *
+     * @throws IOException if a booklet isn't generated.
+     */
+    @Test
+    public void staysStable() throws IOException {
+        check("plain", false);
+    }
+
+    /**
+     * Update a compacted booklet after each edit and check its layers and
+     * size.
+     *
+     * @throws IOException if a booklet isn't generated.
+     */
+    @Test
+    public void staysStableWhenCompacted() throws IOException {
+        check("compact", true);
+    }
+
+    /**
+     * Generate a booklet, then update it after each of a series of edits to
+     * the source and once more without any, checking it each time against the
+     * booklet first generated. Finally, check it against a booklet generated
+     * from scratch from the edited source.
+     *
+     * @param name to prefix the files with.
+     * @param compact true to compact the booklet.
+     * @throws IOException if a booklet isn't generated.
+     */
+    private static void check(String name, boolean compact)
+            throws IOException {
+        DIR.mkdirs();
+        File source = new File(DIR, name + "-source.pdf");
+        File book = new File(DIR, name + "-book.pdf");
+        File full = new File(DIR, name + "-full.pdf");
+        new File(book.getPath() + ".sections").delete();
+        book.delete();
+        generateSource(source);
+
+        generate(source, book, true, compact);
+        final int layers = getLayers(book);
+        final long length = book.length();
+
+        for (int edit = 0; edit <= EDITS; ++edit) {
+            if (edit < EDITS) {
+                // Edit a page of a different section each time.
+                editSource(source, edit * 4 + 1, edit);
+            }
+            generate(source, book, true, compact);
+
+            assertEquals("Layers after edit " + edit, layers,
+                    getLayers(book));
+            assertTrue("Booklet grew from " + length + " to " + book.length()
+                    + " bytes after edit " + edit,
+                    book.length() <= length * SLACK);
+        }
+
+        generate(source, full, false, compact);
+        assertEquals("Layers of the booklet generated from scratch",
+                getLayers(full), getLayers(book));
+        assertTrue("Booklet is " + book.length() + " bytes, generated from "
+                + "scratch it is " + full.length() + " bytes",
+                book.length() <= full.length() * SLACK);
+    }
+
+    /**
+     * Generate a booklet with one sheet in each section.
+     *
+     * @param source PDF to generate the booklet from.
+     * @param book PDF to generate.
+     * @param incremental true to reuse the previous booklet.
+     * @param compact true to compact the booklet.
+     * @throws IOException if the booklet isn't generated.
+     */
+    private static void generate(File source, File book, boolean incremental,
+            boolean compact) throws IOException {
+        BookletJob job = new BookletJob.Builder(source.getPath(),
+                book.getPath()).setSheetCount(1).setIncremental(incremental)
+                .setCompact(compact).build();
+        if (!new BookletEngine().generate(job, new Quiet())) {
+            throw new IOException("Unable to generate " + book);
+        }
+    }
+
+    /**
+     * Count the layers of a booklet, checking that the default configuration
+     * lists each of them once.
+     *
+     * @param book PDF to count the layers of.
+     * @return the number of layers.
+     * @throws IOException if the booklet can't be read.
+     */
+    private static int getLayers(File book) throws IOException {
+        try (PDDocument doc = PDDocument.load(book)) {
+            PDOptionalContentProperties ocProperties =
+                    doc.getDocumentCatalog().getOCProperties();
+            int layers = ocProperties.getOptionalContentGroups().size();
+
+            COSArray order = ocProperties.getCOSObject()
+                    .getCOSDictionary(COSName.D).getCOSArray(COSName.ORDER);
+            assertEquals("Layers listed in the layer panel of " + book,
+                    layers, order.size());
+
+            return layers;
+        }
+    }
+
+    /**
+     * Generate a source PDF. Every page draws the same image in a layer of
+     * its own and some text.
+     *
+     * @param file to save the PDF in.
+     * @throws IOException if the PDF can't be saved.
+     */
+    private static void generateSource(File file) throws IOException {
+        try (PDDocument doc = new PDDocument()) {
+            // Noise doesn't compress, so the image is most of the PDF.
+            Random random = new Random(1);
+            BufferedImage picture =
+                    new BufferedImage(128, 128, BufferedImage.TYPE_INT_RGB);
+            for (int y = 0; y < 128; ++y) {
+                for (int x = 0; x < 128; ++x) {
+                    picture.setRGB(x, y, random.nextInt(0x1000000));
+                }
+            }
+            PDImageXObject image = LosslessFactory.createFromImage(doc,
+                    picture);
+
+            PDOptionalContentProperties ocProperties =
+                    new PDOptionalContentProperties();
+            PDOptionalContentGroup background =
+                    new PDOptionalContentGroup("Background");
+            ocProperties.addGroup(background);
+            doc.getDocumentCatalog().setOCProperties(ocProperties);
+
+            for (int i = 0; i < PAGES; ++i) {
+                PDPage page = new PDPage(PDRectangle.A4);
+                doc.addPage(page);
+
+                try (PDPageContentStream stream =
+                        new PDPageContentStream(doc, page)) {
+                    stream.beginMarkedContent(COSName.OC, background);
+                    stream.drawImage(image, 72, 72, 300, 300);
+                    stream.endMarkedContent();
+                    stream.beginText();
+                    stream.setFont(PDType1Font.HELVETICA_BOLD, 48);
+                    stream.newLineAtOffset(72, 700);
+                    stream.showText("Page " + (i + 1));
+                    stream.endText();
+                }
+            }
+            doc.save(file);
+        }
+    }
+
+    /**
+     * Edit a page of a source PDF by adding a line of text to it.
+     *
+     * @param file of the source PDF.
+     * @param index of the page to edit.
+     * @param edit number of the edit.
+     * @throws IOException if the PDF can't be edited.
+     */
+    private static void editSource(File file, int index, int edit)
+            throws IOException {
+        File edited = new File(file.getPath() + ".tmp");
+        try (PDDocument doc = PDDocument.load(file)) {
+            PDPage page = doc.getPage(index);
+            try (PDPageContentStream stream = new PDPageContentStream(doc,
+                    page, PDPageContentStream.AppendMode.APPEND, true)) {
+                stream.beginText();
+                stream.setFont(PDType1Font.HELVETICA, 24);
+                stream.newLineAtOffset(72, 600);
+                stream.showText("Edit " + (edit + 1));
+                stream.endText();
+            }
+            doc.save(edited);
+        }
+        if (!file.delete() || !edited.renameTo(file)) {
+            throw new IOException("Unable to replace " + file);
+        }
+    }
+
+    /**
+     * Progress listener that keeps the generator off the console.
+     */
+    private static final class Quiet implements BookletEngine.Progress {
+
+        @Override
+        public void update(int percent) {
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,490 @@
+/*  PDFBook - a simple application to generate a booklet from of a PDF.
+ *
+ *  Copyright 2020 Philip Lockett.
+ *
+ *  This file is part of PDFBook.
+ *
+ *  PDFBook is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  PDFBook is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with PDFBook.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+ /*
+ * PerformanceTest generates synthetic source PDFs of mixed page sizes, runs
+ * BookletEngine over each of them for every sheetCount and checks that the
+ * run time grows linearly with the page count and that the heap stays within
+ * recorded bounds. Each booklet is also checked to have the expected number
+ * of sheet sides, with every source page on one of them as a layer. The
+ * measurements are written to target/performance-report.txt so they can be
+ * compared between builds.
+ *
+ * The page counts are taken from the pdfbook.perf.sizes system property,
+ * which the pom sets to 100, 1000 and 5000 pages. The performance profile
+ * adds 10000 and 50000 pages:
+ *  mvn test -Pperformance
+ *
+ * Heap is measured here, in the test's own JVM, rather than by the
+ * application: surefire forks a fresh JVM for this class and runs one job at
+ * a time, so all of the heap in use belongs to the job being measured. The
+ * live heap is sampled after a full GC at every tenth of the run and is the
+ * figure checked against the bounds. The peak heap, which includes garbage
+ * not yet collected, is reported only.
+ */
+package com.phillockett65;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.apache.pdfbox.pdmodel.graphics.optionalcontent.PDOptionalContentGroup;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ * @author Phil
+ */
+@RunWith(Parameterized.class)
+public class PerformanceTest {
+
+    // Largest allowed increase in the time per page from one source size to
+    // the next. A run that is quadratic in the page count fails this by the
+    // ratio of the sizes (5 for the default sizes).
+    private static final double TOLERANCE =
+            Double.parseDouble(System.getProperty("pdfbook.perf.tolerance",
+                    "2.0"));
+
+    // Smallest source timed. Smaller sources take a few tens of milliseconds,
+    // which is too short to be measured reliably on a busy machine.
+    private static final int TIMED_PAGES = 1000;
+
+    // Recorded live heap bound: a fixed allowance plus a per page allowance
+    // for the generated booklet, which is held in memory until it is saved.
+    private static final long BASE_HEAP = 64L * 1024 * 1024;
+    private static final long PAGE_HEAP = 24L * 1024;
+
+    private static final PDRectangle[] SIZES = {
+        PDRectangle.A4, PDRectangle.LETTER, PDRectangle.LEGAL,
+        new PDRectangle(PDRectangle.A5.getHeight(), PDRectangle.A5.getWidth()),
+        PDRectangle.A3
+    };
+
+    private static final File DIR = new File("target", "perf");
+    private static final File REPORT =
+            new File("target", "performance-report.txt");
+    private static final MemoryMXBean MEMORY =
+            ManagementFactory.getMemoryMXBean();
+
+    private static int[] pageCounts;
+    private static final List<String> rows = new ArrayList<>();
+
+    private final int sheetCount;
+
+    /**
+     * Constructor.
+     *
+     * @param count number of sheets in each section.
+     */
+    public PerformanceTest(int count) {
+        sheetCount = count;
+    }
+
+    /**
+     * @return the sheetCount of each run of the test.
+     */
+    @Parameters(name = "sheetCount={0}")
+    public static Collection<Object[]> sheetCounts() {
+        List<Object[]> counts = new ArrayList<>();
+        for (int count = 1; count <= 6; ++count) {
+            counts.add(new Object[]{count});
+        }
+
+        return counts;
+    }
+
+    /**
+     * Generate the source PDFs and warm up the engine, so that the first
+     * measured run doesn't include class loading and compilation.
+     *
+     * @throws IOException if a source PDF can't be saved.
+     */
+    @BeforeClass
+    public static void generateSources() throws IOException {
+        String[] sizes = System.getProperty("pdfbook.perf.sizes",
+                "100,1000,5000")
+                .split(",");
+        pageCounts = new int[sizes.length];
+        for (int i = 0; i < sizes.length; ++i) {
+            pageCounts[i] = Integer.parseInt(sizes[i].trim());
+        }
+        Arrays.sort(pageCounts);
+
+        DIR.mkdirs();
+        for (int count : pageCounts) {
+            generateSource(count, getSource(count));
+        }
+
+        for (int count : pageCounts) {
+            measure(count, 1);
+            if (count >= TIMED_PAGES) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Write the report of all of the runs.
+     *
+     * @throws IOException if the report can't be written.
+     */
+    @AfterClass
+    public static void writeReport() throws IOException {
+        try (PrintWriter out = new PrintWriter(new FileWriter(REPORT))) {
+            out.printf("PDFBook performance: Java %s, max heap %d MB, "
+                    + "tolerance %.1f\n", System.getProperty("java.version"),
+                    Runtime.getRuntime().maxMemory() / (1024 * 1024),
+                    TOLERANCE);
+            out.println();
+            out.printf("%6s %6s %9s %10s %9s %9s %9s %9s\n", "pages",
+                    "sheets", "ms", "us/page", "live MB", "bound MB",
+                    "peak MB", "out KB");
+            for (String row : rows) {
+                out.println(row);
+            }
+        }
+    }
+
+    /**
+     * Generate a booklet from each source and check the booklet and the time
+     * and heap used.
+     *
+     * @throws IOException if a run fails.
+     */
+    @Test
+    public void scalesLinearly() throws IOException {
+        Run previous = null;
+        for (int count : pageCounts) {
+            Run run = measure(count, sheetCount);
+            long bound = BASE_HEAP + count * PAGE_HEAP;
+            synchronized (rows) {
+                rows.add(String.format("%6d %6d %9d %10.1f %9d %9d %9d %9d",
+                        count, sheetCount, run.nanos / 1000000,
+                        run.nanos / 1000.0 / count, run.live / (1024 * 1024),
+                        bound / (1024 * 1024), run.peak / (1024 * 1024),
+                        run.length / 1024));
+            }
+
+            assertEquals("Sheet sides for " + count + " pages",
+                    getSides(count, sheetCount), run.sides);
+            assertEquals("Layers for " + count + " pages", count, run.layers);
+            assertTrue("A sheet side of the " + count + " page booklet has "
+                    + run.maxLayers + " layers", run.maxLayers <= 2);
+
+            assertTrue(count + " pages used " + run.live / (1024 * 1024)
+                    + " MB of live heap, bound is " + bound / (1024 * 1024)
+                    + " MB", run.live <= bound);
+            if (count < TIMED_PAGES) {
+                continue;
+            }
+            if (previous != null) {
+                double ratio = run.perPage() / previous.perPage();
+                assertTrue(String.format("Time per page rose %.1f times from "
+                        + "%d to %d pages", ratio, previous.pages, count),
+                        ratio <= TOLERANCE);
+            }
+            previous = run;
+        }
+    }
+
+    /**
+     * Generate a booklet and measure the time and heap used.
+     *
+     * @param count number of pages in the source PDF.
+     * @param sheets number of sheets in each section.
+     * @return the measurements of the run.
+     * @throws IOException if the booklet isn't generated.
+     */
+    private static Run measure(int count, int sheets) throws IOException {
+        File outPDF = new File(DIR, "book-" + count + "-" + sheets + ".pdf");
+        BookletJob job = new BookletJob.Builder(getSource(count).getPath(),
+                outPDF.getPath()).setSheetCount(sheets).build();
+
+        settleHeap();
+        Probe probe = new Probe();
+        Thread sampler = new Thread(probe, "heap-sampler");
+        sampler.setDaemon(true);
+        sampler.start();
+
+        final long start = System.nanoTime();
+        boolean saved = new BookletEngine().generate(job, probe);
+        final long nanos = System.nanoTime() - start - probe.gcNanos;
+
+        sampler.interrupt();
+        try {
+            sampler.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!saved) {
+            throw new IOException("Unable to generate " + outPDF);
+        }
+
+        Run run = new Run(count, nanos, probe.live, probe.peak,
+                outPDF.length());
+        try (PDDocument book = PDDocument.load(outPDF)) {
+            run.sides = book.getNumberOfPages();
+            for (PDPage side : book.getPages()) {
+                int layers = 0;
+                for (COSName name : side.getResources().getPropertiesNames()) {
+                    if (side.getResources().getProperties(name)
+                            instanceof PDOptionalContentGroup) {
+                        ++layers;
+                    }
+                }
+                run.layers += layers;
+                run.maxLayers = Math.max(run.maxLayers, layers);
+            }
+        }
+        outPDF.delete();
+
+        return run;
+    }
+
+    /**
+     * Count the sheet sides of a booklet. Each side carries a pair of pages,
+     * which for a section of 4 pages per sheet are the outermost pages not
+     * yet used. A side is left out if neither of its pages is in the source,
+     * as happens in the last section.
+     *
+     * @param count number of pages in the source PDF.
+     * @param sheets number of sheets in each section.
+     * @return the number of sheet sides.
+     */
+    private static int getSides(int count, int sheets) {
+        int sides = 0;
+        for (int first = 0; first < count; first += 4 * sheets) {
+            final int pages = Math.min(count - first, 4 * sheets);
+            for (int sheet = 0; sheet < sheets; ++sheet) {
+                // The outer page of each pair is the one nearer the start of
+                // the section, so the side is used if the outer page is.
+                if (2 * sheet < pages) {
+                    ++sides;
+                }
+                if (2 * sheet + 1 < pages) {
+                    ++sides;
+                }
+            }
+        }
+
+        return sides;
+    }
+
+    /**
+     * Collect the garbage left by the previous run. PDFBox documents are
+     * finalized, and finalizing one object can release others that also need
+     * finalizing, so collect until the heap used stops falling.
+     */
+    private static void settleHeap() {
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 20; ++i) {
+            System.gc();
+            System.runFinalization();
+            final long now = MEMORY.getHeapMemoryUsage().getUsed();
+            if (now >= used) {
+                break;
+            }
+            used = now;
+        }
+    }
+
+    /**
+     * @param count number of pages in the source PDF.
+     * @return the file of the source PDF.
+     */
+    private static File getSource(int count) {
+        return new File(DIR, "source-" + count + ".pdf");
+    }
+
+    /**
+     * Generate a source PDF. The pages cycle through several sizes and
+     * orientations, each carries some text and vector graphics, and every
+     * tenth page also draws an image shared by all of them.
+     *
+     * @param count number of pages to generate.
+     * @param file to save the PDF in.
+     * @throws IOException if the PDF can't be saved.
+     */
+    private static void generateSource(int count, File file)
+            throws IOException {
+        try (PDDocument doc = new PDDocument()) {
+            BufferedImage picture =
+                    new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB);
+            for (int y = 0; y < 64; ++y) {
+                for (int x = 0; x < 64; ++x) {
+                    picture.setRGB(x, y, (x * 4) << 16 | (y * 4) << 8 | 128);
+                }
+            }
+            PDImageXObject image = LosslessFactory.createFromImage(doc,
+                    picture);
+
+            for (int i = 0; i < count; ++i) {
+                PDRectangle size = SIZES[i % SIZES.length];
+                PDPage page = new PDPage(size);
+                doc.addPage(page);
+
+                float width = size.getWidth();
+                float height = size.getHeight();
+                try (PDPageContentStream stream =
+                        new PDPageContentStream(doc, page)) {
+                    stream.setLineWidth(2);
+                    stream.addRect(36, 36, width - 72, height - 72);
+                    stream.stroke();
+                    stream.setNonStrokingColor((i * 37) % 256, 96, 160);
+                    stream.addRect(72, height / 2, width - 144, height / 4);
+                    stream.fill();
+                    if (i % 10 == 0) {
+                        stream.drawImage(image, 72, 72, width / 3, width / 3);
+                    }
+                    stream.setNonStrokingColor(0, 0, 0);
+                    stream.beginText();
+                    stream.setFont(PDType1Font.HELVETICA_BOLD, 48);
+                    stream.newLineAtOffset(72, height - 120);
+                    stream.showText("Page " + (i + 1));
+                    stream.setFont(PDType1Font.TIMES_ROMAN, 12);
+                    for (int line = 0; line < 20; ++line) {
+                        stream.newLineAtOffset(0, -16);
+                        stream.showText("Line " + (line + 1) + " of page "
+                                + (i + 1) + " of a synthetic source PDF.");
+                    }
+                    stream.endText();
+                }
+            }
+            doc.save(file);
+        }
+    }
+
+    /**
+     * The measurements of one run.
+     */
+    private static final class Run {
+        private final int pages;
+        private final long nanos;
+        private final long live;
+        private final long peak;
+        private final long length;
+        private int sides = 0;
+        private int layers = 0;
+        private int maxLayers = 0;
+
+        /**
+         * Constructor.
+         *
+         * @param count number of pages in the source PDF.
+         * @param time of the run in nanoseconds, less the forced GCs.
+         * @param liveHeap largest live heap sampled, in bytes.
+         * @param peakHeap largest heap used sampled, in bytes.
+         * @param size of the generated PDF in bytes.
+         */
+        private Run(int count, long time, long liveHeap, long peakHeap,
+                long size) {
+            pages = count;
+            nanos = time;
+            live = liveHeap;
+            peak = peakHeap;
+            length = size;
+        }
+
+        /**
+         * @return the time of the run per source page in nanoseconds.
+         */
+        private double perPage() {
+            return (double) nanos / pages;
+        }
+    }
+
+    /**
+     * Samples the heap while a booklet is generated. The live heap is
+     * sampled after a full GC at each tenth of the run, on the engine's
+     * thread. The peak heap is polled by a separate thread.
+     */
+    private static final class Probe implements BookletEngine.Progress,
+            Runnable {
+        private int next = 10;
+        private long gcNanos = 0;
+        private volatile long live = 0;
+        private volatile long peak = 0;
+
+        /**
+         * Sample the live heap each time another tenth of the run is done.
+         *
+         * @param percent of the selected pages added so far (0 to 100).
+         */
+        @Override
+        public void update(int percent) {
+            if (percent >= next) {
+                next = percent + 10;
+
+                final long start = System.nanoTime();
+                System.gc();
+                live = Math.max(live, MEMORY.getHeapMemoryUsage().getUsed());
+                gcNanos += System.nanoTime() - start;
+            }
+        }
+
+        /**
+         * @return false, the run is never cancelled.
+         */
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        /**
+         * Poll the heap used until interrupted.
+         */
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                peak = Math.max(peak, MEMORY.getHeapMemoryUsage().getUsed());
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+}